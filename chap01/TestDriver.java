@@ -1,16 +1,23 @@
 package chap01;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }    
     public static Money wons(double amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -24,12 +31,19 @@ class Money {
     public Money times(double percent) {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
+    public long toWons(RoundingMode roundingMode) {
+        return amount.setScale(0, roundingMode).longValueExact();
+    }
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
     public boolean isGreaterThanOrEqual(Money other) {
         return amount.compareTo(other.amount) >= 0;
     }
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
     public boolean equals(Object object) {
         if (this == object) {
             return true; 
@@ -38,10 +52,15 @@ class Money {
             return false;
         }
         Money other = (Money)object; 
-        return amount.equals(other.amount); 
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액 
     }
     public int hashCode() {
-        return amount.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
     }
     public String toString() {
         return amount.toString() + "원";
@@ -64,33 +83,147 @@ class Ticket {
     }
 }
 
+/** 티켓 구매 결과. 콘솔에 출력하는 대신 호출한 쪽에 돌려준다. */
+class Purchase {
+    enum Status {
+        INVITED,            // 초대장으로 교환
+        PAID,               // 현금으로 구매
+        NOT_ENOUGH_MONEY,   // 잔액 부족
+        SOLD_OUT            // 매진
+    }
+
+    private final Status status;
+    private final Ticket ticket;
+    private final Money paid;
+
+    Purchase(Status status, Ticket ticket, Money paid) {
+        this.status = status;
+        this.ticket = ticket;
+        this.paid = paid;
+    }
+    public boolean isSucceeded() {
+        return ticket != null;
+    }
+    public Status getStatus() {
+        return status;
+    }
+    public Ticket getTicket() {
+        return ticket;
+    }
+    public Money getPaid() {
+        return paid;
+    }
+    public String toString() {
+        if (status == Status.NOT_ENOUGH_MONEY) {
+            return "not enough money";
+        }
+        return status + ": " + ticket + ", " + paid;
+    }
+}
+
+/**
+ * 잔액(원)과 초대장 보유 여부를 long 하나에 묶어 CAS로만 바꾼다.
+ * 여러 판매원이 같은 가방(가족, 단체 계정)을 동시에 상대해도 잔액 확인과 차감이 한 번에 일어난다.
+ * 티켓을 먼저 받아 온 뒤 그 티켓의 요금을 차감하고, 차감하지 못하면 티켓을 매표소에 돌려준다.
+ * 동시에 산 티켓은 모두 가방에 남는다.
+ */
 class Bag {
-    private InvitationCard invitationCard;
-    private Money money;
-    private Ticket ticket;
+    private static final long INVITATION = 1L;
+
+    private final InvitationCard invitationCard;
+    private final AtomicLong state; // 상위 63비트: 잔액, 최하위 비트: 초대장 보유
+    private final Queue<Ticket> tickets = new ConcurrentLinkedQueue<>(); // 산 순서대로
 
     public Bag(InvitationCard invitationCard, Money money) {
         this.invitationCard = invitationCard;
-        this.money = money;
+        this.state = new AtomicLong(pack(wholeWons(money), invitationCard != null));
     }
     public Bag(Money money) {
         this(null, money);
     }
-    public void setTicket(TicketOffice ticketOffice) {
-        if (invitationCard != null) {
-            invitationCard = null;
-            this.ticket = ticketOffice.getTicket();
-        } else if (money.isLessThan(ticketOffice.getFee())) {
-            System.out.println("not enough money");
-        } else {
-            money = money.minus(ticketOffice.getFee());
-            this.ticket = ticketOffice.getTicket();
+    public Purchase setTicket(TicketOffice ticketOffice) {
+        boolean invited = useInvitation();
+        Ticket issued;
+        try {
+            issued = ticketOffice.getTicket();
+        } catch (IndexOutOfBoundsException e) {
+            if (invited) {
+                state.getAndUpdate(current -> current | INVITATION); // 매진이면 쓴 초대장을 돌려놓는다.
+            }
+            return new Purchase(Purchase.Status.SOLD_OUT, null, Money.ZERO);
+        }
+
+        if (invited) {
+            tickets.add(issued);
+            return new Purchase(Purchase.Status.INVITED, issued, Money.ZERO);
         }
+
+        Money fee = issued.getFee();
+        long price = wholeWons(fee);
+        if (!charge(price)) {
+            ticketOffice.returnTicket(issued);
+            return new Purchase(Purchase.Status.NOT_ENOUGH_MONEY, null, Money.ZERO);
+        }
+
+        ticketOffice.addRevenue(price);
+        tickets.add(issued);
+        return new Purchase(Purchase.Status.PAID, issued, fee);
     }
     public void showState() {
-        System.out.println("잔액: " + money);
-        System.out.println("티켓: " + ticket);
-        System.out.println("초대장: " + invitationCard);
+        long current = state.get();
+        System.out.println("잔액: " + Money.wons(balanceOf(current)));
+        System.out.println("티켓: " + (tickets.size() <= 1 ? tickets.peek() : tickets));
+        System.out.println("초대장: " + (hasInvitation(current) ? invitationCard : null));
+    }
+
+    /** 가방에 든 티켓들, 산 순서대로 */
+    public List<Ticket> getTickets() {
+        return new ArrayList<>(tickets);
+    }
+
+    /** 초대장이 있으면 CAS로 떼어 내고 true를 돌려준다. */
+    private boolean useInvitation() {
+        long before;
+        do {
+            before = state.get();
+            if (!hasInvitation(before)) {
+                return false;
+            }
+        } while (!state.compareAndSet(before, before & ~INVITATION));
+        return true;
+    }
+    /** 잔액이 price 이상이면 CAS로 차감하고 true, 모자라면 아무것도 바꾸지 않고 false */
+    private boolean charge(long price) {
+        long before;
+        long after;
+        do {
+            before = state.get();
+            if (balanceOf(before) < price) {
+                return false;
+            }
+            after = pack(balanceOf(before) - price, hasInvitation(before));
+        } while (!state.compareAndSet(before, after));
+        return true;
+    }
+    /** 잔액은 원 단위로만 다룬다. 원 미만이 남는 금액은 버리거나 올리지 않고 거부한다. */
+    private static long wholeWons(Money money) {
+        try {
+            return money.toWons(RoundingMode.UNNECESSARY);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("not a whole won amount: " + money, e);
+        }
+    }
+    private static long pack(long balance, boolean invitation) {
+        if (balance < 0 || balance > (Long.MAX_VALUE >> 1)) {
+            throw new IllegalArgumentException("balance out of range: " + balance);
+        }
+        return (balance << 1) | (invitation ? INVITATION : 0);
+    }
+    private static long balanceOf(long state) {
+        return state >>> 1;
+    }
+    private static boolean hasInvitation(long state) {
+        return (state & INVITATION) != 0;
     }
 }
 
@@ -104,8 +237,8 @@ class Audience {
     public void setBag(Bag bag) {
         this.bag = bag;
     }
-    public void buyFrom(TicketOffice ticketOffice) {
-        bag.setTicket(ticketOffice);
+    public Purchase buyFrom(TicketOffice ticketOffice) {
+        return bag.setTicket(ticketOffice);
     }
     public void showState() {
         System.out.println("================");
@@ -117,47 +250,170 @@ class Audience {
 }
 
 class TicketOffice {
-    private Money money;
-    private List<Ticket> tickets = new ArrayList<>();
+    private final Money money;
+    private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+    private final LongAdder revenue = new LongAdder(); // 판매 금액(원), 락 없이 합산해 읽는다.
+    private volatile int remaining;
 
     public TicketOffice(Money money, Ticket ... t) {
         this.money = money;
         tickets.addAll(Arrays.asList(t));
+        this.remaining = tickets.size();
     }
 
-    public Ticket getTicket() {
+    /** 초대장 교환처럼 돈을 받지 않고 티켓을 내준다. */
+    public synchronized Ticket getTicket() {
         if (tickets.isEmpty()) {
             throw new IndexOutOfBoundsException();
         }
-        money.plus(getFee());
-        return tickets.remove(0); 
+        remaining--;
+        return tickets.poll();
     }
 
-    public Money getFee() {
+    /** 요금을 받지 못한 티켓을 재고 맨 앞으로 되돌린다. */
+    public synchronized void returnTicket(Ticket ticket) {
+        tickets.addFirst(ticket);
+        remaining++;
+    }
+
+    /** 관객에게서 실제로 받은 금액(원)을 매출로 기록한다. */
+    public void addRevenue(long wons) {
+        revenue.add(wons);
+    }
+
+    public synchronized Money getFee() {
         if (tickets.isEmpty()) {
             throw new IndexOutOfBoundsException();
         }
-        return tickets.get(0).getFee();
+        return tickets.peek().getFee();
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public long getRevenue() {
+        return revenue.sum();
+    }
+
+    public Money getMoney() {
+        return money.plus(Money.wons(revenue.sum()));
+    }
+}
+
+/**
+ * 여러 매표소에 나눠 둔 티켓 재고. 판매원은 자기 매표소에서 먼저 팔고, 떨어지면 다른 매표소의 재고를 가져다 판다.
+ * 남은 재고와 매출은 매표소별 값을 락 없이 더해서 읽는다.
+ */
+class TicketOfficeGroup {
+    private final TicketOffice[] offices;
+
+    public TicketOfficeGroup(TicketOffice ... offices) {
+        if (offices.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.offices = offices;
+    }
+
+    /** 티켓을 매표소 count 곳에 번갈아 나눠 담는다. */
+    public static TicketOfficeGroup partition(int count, Money money, Ticket ... tickets) {
+        List<List<Ticket>> partitions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < tickets.length; i++) {
+            partitions.get(i % count).add(tickets[i]);
+        }
+
+        TicketOffice[] offices = new TicketOffice[count];
+        for (int i = 0; i < count; i++) {
+            offices[i] = new TicketOffice(i == 0 ? money : Money.ZERO, partitions.get(i).toArray(new Ticket[0]));
+        }
+        return new TicketOfficeGroup(offices);
+    }
+
+    /** home 매표소에 재고가 있으면 그곳을, 없으면 재고가 남은 다른 매표소를 돌려준다. 모두 매진이면 null */
+    public TicketOffice officeFor(int home) {
+        for (int i = 0; i < offices.length; i++) {
+            TicketOffice office = offices[(home + i) % offices.length];
+            if (office.getRemaining() > 0) {
+                return office;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return offices.length;
+    }
+
+    public int getRemaining() {
+        int result = 0;
+        for (TicketOffice office : offices) {
+            result += office.getRemaining();
+        }
+        return result;
+    }
+
+    public Money getRevenue() {
+        long result = 0;
+        for (TicketOffice office : offices) {
+            result += office.getRevenue();
+        }
+        return Money.wons(result);
     }
 }
 
 class TicketSeller {
-    private TicketOffice ticketOffice;
+    private TicketOfficeGroup ticketOffices;
+    private int home;
 
     public TicketSeller(TicketOffice ticketOffice) {
-        this.ticketOffice = ticketOffice;
+        this(new TicketOfficeGroup(ticketOffice), 0);
+    }
+
+    public TicketSeller(TicketOfficeGroup ticketOffices, int home) {
+        this.ticketOffices = ticketOffices;
+        this.home = home;
     }
 
-    public void sellTo(Audience audience) {
-        audience.buyFrom(ticketOffice);
+    public Purchase sellTo(Audience audience) {
+        while (true) {
+            TicketOffice ticketOffice = ticketOffices.officeFor(home);
+            if (ticketOffice == null) {
+                return new Purchase(Purchase.Status.SOLD_OUT, null, Money.ZERO);
+            }
+
+            Purchase purchase = audience.buyFrom(ticketOffice);
+            if (purchase.getStatus() != Purchase.Status.SOLD_OUT) {
+                return purchase;
+            }
+            // 확인한 사이 그 매표소가 매진되었으면 다른 매표소에서 다시 시도한다.
+        }
     }
 }
 
 class Theater {
-    private TicketSeller ticketSeller;
+    private TicketSeller[] ticketSellers;
+
+    Theater(TicketSeller ... ticketSellers) {
+        this.ticketSellers = ticketSellers;
+    }
+
+    /** 입구마다 판매원 한 명과 매표소 하나를 둔다. */
+    Theater(TicketOfficeGroup ticketOffices) {
+        this.ticketSellers = new TicketSeller[ticketOffices.size()];
+        for (int gate = 0; gate < ticketSellers.length; gate++) {
+            ticketSellers[gate] = new TicketSeller(ticketOffices, gate);
+        }
+    }
 
-    void enter(Audience audience) {
-        ticketSeller.sellTo(audience);
+    Purchase enter(Audience audience) {
+        return enter(0, audience);
+    }
+
+    Purchase enter(int gate, Audience audience) {
+        return ticketSellers[gate].sellTo(audience);
     }
 }
 
@@ -181,9 +437,12 @@ public class TestDriver {
 
         TicketOffice ticketOffice = new TicketOffice(Money.ZERO, ticket1, ticket2, ticket3);
         TicketSeller ticketSeller = new TicketSeller(ticketOffice);
-        ticketSeller.sellTo(audience1);
-        ticketSeller.sellTo(audience2);
-        ticketSeller.sellTo(audience3);
+        for (Audience audience : Arrays.asList(audience1, audience2, audience3)) {
+            Purchase purchase = ticketSeller.sellTo(audience);
+            if (!purchase.isSucceeded()) {
+                System.out.println(purchase);
+            }
+        }
 
         audience1.showState();
         audience2.showState();
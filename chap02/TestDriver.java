@@ -1,6 +1,7 @@
 package chap02;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.DayOfWeek;
 import java.time.Duration;
 import java.time.LocalDateTime;
@@ -8,13 +9,17 @@ import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }    
     public static Money wons(double amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -28,12 +33,22 @@ class Money {
     public Money times(double percent) {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
+    public long toUnscaled(int scale, RoundingMode roundingMode) {
+        return amount.movePointRight(scale).setScale(0, roundingMode).longValueExact();
+    }
+    public static Money ofUnscaled(long unscaled, int scale) {
+        return new Money(BigDecimal.valueOf(unscaled, scale));
+    }
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
     public boolean isGreaterThanOrEqual(Money other) {
         return amount.compareTo(other.amount) >= 0;
     }
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
     public boolean equals(Object object) {
         if (this == object) {
             return true; 
@@ -42,10 +57,15 @@ class Money {
             return false;
         }
         Money other = (Money)object; 
-        return amount.equals(other.amount); 
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액 
     }
     public int hashCode() {
-        return amount.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
     }
     public String toString() {
         return amount.toString() + "원";
@@ -65,10 +85,7 @@ class Movie {
     }
 
     public Money getFee(int sequence, LocalDateTime whenScreened) {
-        if (discountPolicy.isPossibleDC(sequence, whenScreened)) {
-            return fee.minus(discountPolicy.getDC(fee));
-        }
-        return fee;
+        return fee.minus(discountPolicy.getDC(sequence, whenScreened, fee));
     }
 }
 class Screening {
@@ -101,6 +118,9 @@ class SequenceCondition implements DiscountCondition {
     public boolean isPossibleDC(int sequence, LocalDateTime whenScreened) {
         return this.sequence == sequence;
     }
+    public String toString() {
+        return "SequenceCondition(" + sequence + ")";
+    }
 }
 class PeriodCondition implements DiscountCondition {
     private DayOfWeek dayOfWeek;
@@ -117,24 +137,266 @@ class PeriodCondition implements DiscountCondition {
                 startTime.compareTo(whenScreened.toLocalTime()) <= 0 &&
                 endTime.compareTo(whenScreened.toLocalTime()) >= 0;
     }
-    
+    public String toString() {
+        return "PeriodCondition(" + dayOfWeek + " " + startTime + "-" + endTime + ")";
+    }
 }
 
 abstract class DiscountPolicy {
     private List<DiscountCondition> conditions = new ArrayList<>();
+    private final DiscountUsage usage;
+    private final ConditionOrdering ordering;
 
     public DiscountPolicy (DiscountCondition ... c) {
         this.conditions = Arrays.asList(c);
+        this.usage = new DiscountUsage(getClass().getSimpleName(), conditions);
+        this.ordering = new ConditionOrdering(conditions.size());
     }
 
     abstract public Money getDC(Money fee);
 
     public boolean isPossibleDC(int sequence, LocalDateTime whenScreened) {
-        for (DiscountCondition i : conditions) {
-            if (i.isPossibleDC(sequence, whenScreened))
-                return true;
+        return matchedCondition(sequence, whenScreened) >= 0;
+    }
+
+    /** 할인 조건을 만족하면 할인 금액을, 아니면 0원을 돌려주고 할인을 일으킨 조건의 통계에 기록한다. */
+    public Money getDC(int sequence, LocalDateTime whenScreened, Money fee) {
+        int matched = matchedCondition(sequence, whenScreened);
+        if (matched < 0) {
+            return Money.ZERO;
+        }
+        Money dc = getDC(fee);
+        usage.recordDiscount(matched, dc);
+        return dc;
+    }
+
+    public DiscountUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * 적응 모드를 켜면 적중률과 평가 비용을 표본으로 재서 조건 평가 순서를 주기적으로 바꾼다.
+     * 할인 여부와 금액은 순서와 무관하다. 통계에서 할인을 일으킨 조건으로 잡히는 조건만 달라질 수 있다.
+     */
+    public void setAdaptiveOrdering(boolean adaptive) {
+        ordering.setAdaptive(adaptive);
+    }
+
+    private int matchedCondition(int sequence, LocalDateTime whenScreened) {
+        boolean timed = ordering.sample();
+        int matched = -1;
+        for (int i : ordering.current()) {
+            long started = timed ? System.nanoTime() : 0;
+            boolean hit = conditions.get(i).isPossibleDC(sequence, whenScreened);
+            if (timed) {
+                ordering.recordSample(i, System.nanoTime() - started, hit);
+            }
+            if (matched < 0) {
+                usage.recordCondition(i, hit);
+                if (hit) {
+                    matched = i;
+                }
+            }
+            if (matched >= 0 && !timed) {
+                break; // 표본 평가는 적중률을 앞 조건과 무관하게 재려고 나머지 조건도 평가한다.
+            }
+        }
+        usage.recordPolicy(matched >= 0);
+        ordering.maybeReorder();
+        return matched;
+    }
+}
+
+/**
+ * 할인 정책의 조건별 사용 통계. 조건마다 평가 횟수, 할인 적용 횟수, 할인해 준 금액을 LongAdder로 센다.
+ * 여러 스레드가 같은 정책을 평가해도 서로 경합하지 않고, snapshot()으로 그 시점의 값을 꺼낼 수 있다.
+ */
+class DiscountUsage {
+    static final int SCALE = 2; // 할인 금액은 1/100원 단위로 센다.
+
+    private final String policyName;
+    private final String[] conditionNames;
+    private final LongAdder[] evaluations;
+    private final LongAdder[] hits;
+    private final LongAdder[] discounted;
+    private final LongAdder policyEvaluations = new LongAdder();
+    private final LongAdder policyHits = new LongAdder();
+    private final LongAdder policyDiscounted = new LongAdder();
+
+    DiscountUsage(String policyName, List<?> conditions) {
+        this.policyName = policyName;
+        this.conditionNames = new String[conditions.size()];
+        this.evaluations = new LongAdder[conditions.size()];
+        this.hits = new LongAdder[conditions.size()];
+        this.discounted = new LongAdder[conditions.size()];
+        for (int i = 0; i < conditions.size(); i++) {
+            conditionNames[i] = String.valueOf(conditions.get(i));
+            evaluations[i] = new LongAdder();
+            hits[i] = new LongAdder();
+            discounted[i] = new LongAdder();
+        }
+    }
+
+    void recordPolicy(boolean hit) {
+        policyEvaluations.increment();
+        if (hit) {
+            policyHits.increment();
+        }
+    }
+
+    void recordCondition(int condition, boolean hit) {
+        evaluations[condition].increment();
+        if (hit) {
+            hits[condition].increment();
+        }
+    }
+
+    /** 할인 금액을 할인을 일으킨 조건과 정책 양쪽에 더한다. */
+    void recordDiscount(int condition, Money amount) {
+        long unscaled = amount.toUnscaled(SCALE, RoundingMode.HALF_EVEN);
+        discounted[condition].add(unscaled);
+        policyDiscounted.add(unscaled);
+    }
+
+    /** 정책 전체 통계를 첫 항목으로, 이어서 조건별 통계를 생성자 순서대로 돌려준다. */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<>();
+        result.add(new Snapshot(policyName, policyEvaluations.sum(), policyHits.sum(), policyDiscounted.sum()));
+        for (int i = 0; i < conditionNames.length; i++) {
+            result.add(new Snapshot(policyName + "/" + conditionNames[i], evaluations[i].sum(), hits[i].sum(), discounted[i].sum()));
+        }
+        return result;
+    }
+
+    static class Snapshot {
+        private final String name;
+        private final long evaluations;
+        private final long hits;
+        private final Money discounted;
+
+        private Snapshot(String name, long evaluations, long hits, long discounted) {
+            this.name = name;
+            this.evaluations = evaluations;
+            this.hits = hits;
+            this.discounted = Money.ofUnscaled(discounted, SCALE);
+        }
+        public String getName() {
+            return name;
+        }
+        public long getEvaluations() {
+            return evaluations;
+        }
+        public long getHits() {
+            return hits;
+        }
+        public double getHitRatio() {
+            return evaluations == 0 ? 0 : (double)hits / evaluations;
+        }
+        public Money getDiscounted() {
+            return discounted;
+        }
+        public String toString() {
+            return name + " evaluations=" + evaluations + ", hits=" + hits + ", discounted=" + discounted;
+        }
+    }
+}
+/**
+ * 할인 조건을 평가하는 순서. 적응 모드에서는 평가 일부를 표본으로 골라 모든 조건을 끝까지 평가해 조건별 비용과 적중률을 재고,
+ * 가끔 (적중률 / 평가 비용)이 큰 조건부터 오도록 순서를 다시 정한다. 평소 평가는 첫 적중에서 멈추므로 뒤 조건은
+ * "앞 조건이 모두 빗나간 경우"만 평가된다. 그 통계로 적중률을 재면 뒤 조건이 불리해지므로 표본만 쓴다. 조건은 OR로 묶여 있으므로
+ * 순서가 바뀌어도 할인 여부는 같다. 새 순서는 volatile 배열 교체로 공개되어 읽는 쪽은 락이 없다.
+ */
+class ConditionOrdering {
+    private static final int SAMPLE_ONE_IN = 64;
+    private static final int REORDER_ONE_IN = 4096;
+
+    private final LongAdder[] costNanos;
+    private final LongAdder[] costSamples;
+    private final LongAdder[] sampleHits;
+    private final AtomicBoolean reordering = new AtomicBoolean();
+    private volatile int[] order;
+    private volatile boolean adaptive;
+
+    ConditionOrdering(int size) {
+        this.order = new int[size];
+        this.costNanos = new LongAdder[size];
+        this.costSamples = new LongAdder[size];
+        this.sampleHits = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            costNanos[i] = new LongAdder();
+            costSamples[i] = new LongAdder();
+            sampleHits[i] = new LongAdder();
+        }
+    }
+
+    int[] current() {
+        return order;
+    }
+
+    void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /** 이번 평가를 표본으로 삼아 모든 조건의 비용과 적중 여부를 잴지 정한다. */
+    boolean sample() {
+        return adaptive && ThreadLocalRandom.current().nextInt(SAMPLE_ONE_IN) == 0;
+    }
+
+    void recordSample(int condition, long nanos, boolean hit) {
+        costNanos[condition].add(nanos);
+        costSamples[condition].increment();
+        if (hit) {
+            sampleHits[condition].increment();
+        }
+    }
+
+    void maybeReorder() {
+        if (!adaptive || ThreadLocalRandom.current().nextInt(REORDER_ONE_IN) != 0) {
+            return;
+        }
+        if (!reordering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reorder();
+        } finally {
+            reordering.set(false);
+        }
+    }
+
+    void reorder() {
+        int size = order.length;
+        double[] scores = new double[size];
+        double defaultCost = averageCost();
+        for (int i = 0; i < size; i++) {
+            long samples = costSamples[i].sum();
+            double cost = samples == 0 ? defaultCost : Math.max(1.0, (double)costNanos[i].sum() / samples);
+            double hitRatio = (sampleHits[i].sum() + 1.0) / (samples + 2.0);
+            scores[i] = hitRatio / cost;
+        }
+
+        Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = order[i];
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        int[] next = new int[size];
+        for (int i = 0; i < size; i++) {
+            next[i] = sorted[i];
+        }
+        this.order = next;
+    }
+
+    private double averageCost() {
+        long nanos = 0;
+        long samples = 0;
+        for (int i = 0; i < costNanos.length; i++) {
+            nanos += costNanos[i].sum();
+            samples += costSamples[i].sum();
         }
-        return false;
+        return samples == 0 ? 1.0 : Math.max(1.0, (double)nanos / samples);
     }
 }
 
@@ -4,15 +4,37 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Currency;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.math.BigDecimal;
-import java.util.Objects;
+import java.math.RoundingMode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /** BigDecimal 클래스를 이용한 사칙연산 메서드를 제공하는 Money 클래스 */
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
 
+    private static final byte[] WON = "원".getBytes(StandardCharsets.UTF_8);
+
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     public static Money wons(long amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -23,7 +45,7 @@ class Money {
     }
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }
 
     public Money plus(Money amount) {
@@ -38,6 +60,20 @@ class Money {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
 
+    /** 소수점 아래 scale 자리로 맞춘다. */
+    public Money round(int scale, RoundingMode roundingMode) {
+        return new Money(amount.setScale(scale, roundingMode));
+    }
+
+    /** 소수점 아래 scale 자리까지를 정수로 바꾼다. 예: scale이 2이면 1.5원은 150 */
+    public long toUnscaled(int scale, RoundingMode roundingMode) {
+        return amount.movePointRight(scale).setScale(0, roundingMode).longValueExact();
+    }
+
+    public static Money ofUnscaled(long unscaled, int scale) {
+        return new Money(BigDecimal.valueOf(unscaled, scale));
+    }
+
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
@@ -46,6 +82,11 @@ class Money {
         return amount.compareTo(other.amount) >= 0;
     }
 
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
+
     public boolean equals(Object object) {
         if (this == object) {
             return true;
@@ -56,11 +97,26 @@ class Money {
         }
 
         Money other = (Money)object;
-        return Objects.equals(amount.doubleValue(), other.amount.doubleValue());
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액
     }
 
     public int hashCode() {
-        return Objects.hashCode(amount);
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
+    }
+
+    /** 청구서에 금액을 toString()과 같은 모양으로 쓴다. 소수 자리가 없는 금액은 문자열을 만들지 않고 자릿수를 바로 쓴다. */
+    public void writeTo(InvoiceWriter out) {
+        if (amount.scale() == 0 && amount.precision() <= 18) {
+            out.put(amount.longValue());
+        } else {
+            out.put(amount.toString());
+        }
+        out.put(WON);
     }
 
     public String toString() {
@@ -68,6 +124,48 @@ class Money {
     }
 }
 
+/**
+ * 요금제의 금액 정밀도. 통화 기본 소수 자릿수(scale)까지 roundingMode로 맞추며, point 단계부터 반올림한다.
+ * 그 전 단계의 곱셈 결과는 scale + GUARD 자리에서 HALF_EVEN으로 끊어 BigDecimal 피연산자가 계속 길어지지 않게 한다.
+ * 끊기와 반올림은 항목마다 따로 일어나고 덧셈은 정확하므로, 어떤 순서로 더해도 같은 금액이 나온다.
+ */
+class MoneyRounding {
+    /** 반올림하는 단계: 1인 요금 / 예매 한 건 / 영수증 */
+    enum Point { TICKET, LINE, INVOICE }
+
+    static final int GUARD = 6;
+
+    /** 원 단위, 예매 한 건마다 반올림 */
+    public static final MoneyRounding KRW = of(Currency.getInstance("KRW"), RoundingMode.HALF_UP, Point.LINE);
+
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private final Point point;
+
+    public static MoneyRounding of(Currency currency, RoundingMode roundingMode, Point point) {
+        return new MoneyRounding(Math.max(currency.getDefaultFractionDigits(), 0), roundingMode, point);
+    }
+
+    public MoneyRounding(int scale, RoundingMode roundingMode, Point point) {
+        if (scale < 0 || roundingMode == null || point == null) {
+            throw new IllegalArgumentException();
+        }
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.point = point;
+    }
+
+    /** at 단계의 금액. 반올림 단계 이후이면 scale 자리로 맞추고, 그 전이면 그대로 돌려준다. */
+    public Money at(Point at, Money amount) {
+        return at.compareTo(point) >= 0 ? amount.round(scale, roundingMode) : amount;
+    }
+
+    /** amount * ratio를 작업 정밀도(scale + GUARD 자리)로 끊는다. */
+    public Money times(Money amount, double ratio) {
+        return amount.times(ratio).round(scale + GUARD, RoundingMode.HALF_EVEN);
+    }
+}
+
 class Customer {
     private String name;
     private String id;
@@ -76,6 +174,12 @@ class Customer {
         this.id = id;
         this.name = name;
     }
+    /** toString()과 같은 내용을 writer의 버퍼에 바로 쓴다. */
+    public void writeTo(InvoiceWriter out) {
+        out.put("==Customer info==").newLine()
+           .put("name='").put(name).newLine()
+           .put("id='").put(id).newLine();
+    }
     public String toString() {
         return  "==Customer info==" + '\n' +
                 "name='" + name + '\n' +
@@ -97,6 +201,10 @@ class sequenceDCCondition implements DCCondition {
     public boolean isDiscountable(int sequence, LocalDateTime whenScreened) {
         return this.sequence == sequence;
     }
+
+    public String toString() {
+        return "sequenceDCCondition(" + sequence + ")";
+    }
 }
 class periodDCCondition implements DCCondition {
     private DayOfWeek dayOfWeek;
@@ -115,25 +223,78 @@ class periodDCCondition implements DCCondition {
                 this.startTime.compareTo(whenScreened.toLocalTime()) <= 0 &&
                 this.endTime.compareTo(whenScreened.toLocalTime()) >= 0;
     }
+
+    public String toString() {
+        return "periodDCCondition(" + dayOfWeek + " " + startTime + "-" + endTime + ")";
+    }
 }
 /** 할인 요금을 리턴하는 getFee() 메서드를 가진 추상 클래스 */
 abstract class DCPolicy {
     private List<DCCondition> dcConditions; // 할인 조건 목록
+    private final DiscountUsage usage; // 조건별 사용 통계
+    private final ConditionOrdering ordering; // 조건 평가 순서
 
     public DCPolicy(DCCondition... dcConditions) {
         this.dcConditions = Arrays.asList(dcConditions);
+        this.usage = new DiscountUsage(getClass().getSimpleName(), this.dcConditions);
+        this.ordering = new ConditionOrdering(this.dcConditions.size());
     }
 
     public boolean isDiscountable(int sequence, LocalDateTime whenScreened) {
-        for (DCCondition i : dcConditions) {
-            if (i.isDiscountable(sequence, whenScreened)) {
-                return true;
+        return matchedCondition(sequence, whenScreened) >= 0;
+    }
+
+    /**
+     * 할인 조건을 만족하면 할인된 요금을, 아니면 원래 요금을 돌려주고 할인을 일으킨 조건의 통계에 기록한다.
+     * 비율 할인처럼 곱셈이 들어가는 계산은 rounding의 작업 정밀도로 끊는다.
+     */
+    public Money getFee(int sequence, LocalDateTime whenScreened, Money fee, MoneyRounding rounding) {
+        int matched = matchedCondition(sequence, whenScreened);
+        if (matched < 0) {
+            return fee;
+        }
+        Money discounted = getFee(fee, rounding);
+        usage.recordDiscount(matched, fee.minus(discounted));
+        return discounted;
+    }
+
+    public DiscountUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * 적응 모드를 켜면 적중률과 평가 비용을 표본으로 재서 조건 평가 순서를 주기적으로 바꾼다.
+     * 할인 여부와 금액은 순서와 무관하다. 통계에서 할인을 일으킨 조건으로 잡히는 조건만 달라질 수 있다.
+     */
+    public void setAdaptiveOrdering(boolean adaptive) {
+        ordering.setAdaptive(adaptive);
+    }
+
+    private int matchedCondition(int sequence, LocalDateTime whenScreened) {
+        boolean timed = ordering.sample();
+        int matched = -1;
+        for (int i : ordering.current()) {
+            long started = timed ? System.nanoTime() : 0;
+            boolean hit = dcConditions.get(i).isDiscountable(sequence, whenScreened);
+            if (timed) {
+                ordering.recordSample(i, System.nanoTime() - started, hit);
+            }
+            if (matched < 0) {
+                usage.recordCondition(i, hit);
+                if (hit) {
+                    matched = i;
+                }
+            }
+            if (matched >= 0 && !timed) {
+                break; // 표본 평가는 적중률을 앞 조건과 무관하게 재려고 나머지 조건도 평가한다.
             }
         }
-        return false;
+        usage.recordPolicy(matched >= 0);
+        ordering.maybeReorder();
+        return matched;
     }
 
-    abstract Money getFee(Money fee);
+    abstract Money getFee(Money fee, MoneyRounding rounding);
 
 
 }
@@ -144,7 +305,7 @@ class AmountDCPolicy extends DCPolicy {
         this.DCAmount = DCAmount;
     }
     @Override
-    Money getFee(Money fee) {
+    Money getFee(Money fee, MoneyRounding rounding) {
         return fee.minus(DCAmount);
     }
     public String toString() {
@@ -159,19 +320,219 @@ class PercentDCPolicy extends DCPolicy {
         this.DCPercent = dcPercent;
     }
     @Override
-    Money getFee(Money fee) {
-        return fee.minus(fee.times(DCPercent));
+    Money getFee(Money fee, MoneyRounding rounding) {
+        return fee.minus(rounding.times(fee, DCPercent));
     }
     public String toString() {
         return "PercentDCPolicy";
     }
 }
 
+/**
+ * 할인 정책의 조건별 사용 통계. 조건마다 평가 횟수, 할인 적용 횟수, 할인해 준 금액을 LongAdder로 센다.
+ * 여러 스레드가 같은 정책을 평가해도 서로 경합하지 않고, snapshot()으로 그 시점의 값을 꺼낼 수 있다.
+ */
+class DiscountUsage {
+    static final int SCALE = 2; // 할인 금액은 1/100원 단위로 센다.
+
+    private final String policyName;
+    private final String[] conditionNames;
+    private final LongAdder[] evaluations;
+    private final LongAdder[] hits;
+    private final LongAdder[] discounted;
+    private final LongAdder policyEvaluations = new LongAdder();
+    private final LongAdder policyHits = new LongAdder();
+    private final LongAdder policyDiscounted = new LongAdder();
+
+    DiscountUsage(String policyName, List<?> conditions) {
+        this.policyName = policyName;
+        this.conditionNames = new String[conditions.size()];
+        this.evaluations = new LongAdder[conditions.size()];
+        this.hits = new LongAdder[conditions.size()];
+        this.discounted = new LongAdder[conditions.size()];
+        for (int i = 0; i < conditions.size(); i++) {
+            conditionNames[i] = String.valueOf(conditions.get(i));
+            evaluations[i] = new LongAdder();
+            hits[i] = new LongAdder();
+            discounted[i] = new LongAdder();
+        }
+    }
+
+    void recordPolicy(boolean hit) {
+        policyEvaluations.increment();
+        if (hit) {
+            policyHits.increment();
+        }
+    }
+
+    void recordCondition(int condition, boolean hit) {
+        evaluations[condition].increment();
+        if (hit) {
+            hits[condition].increment();
+        }
+    }
+
+    /** 할인 금액을 할인을 일으킨 조건과 정책 양쪽에 더한다. */
+    void recordDiscount(int condition, Money amount) {
+        long unscaled = amount.toUnscaled(SCALE, RoundingMode.HALF_EVEN);
+        discounted[condition].add(unscaled);
+        policyDiscounted.add(unscaled);
+    }
+
+    /** 정책 전체 통계를 첫 항목으로, 이어서 조건별 통계를 생성자 순서대로 돌려준다. */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<>();
+        result.add(new Snapshot(policyName, policyEvaluations.sum(), policyHits.sum(), policyDiscounted.sum()));
+        for (int i = 0; i < conditionNames.length; i++) {
+            result.add(new Snapshot(policyName + "/" + conditionNames[i], evaluations[i].sum(), hits[i].sum(), discounted[i].sum()));
+        }
+        return result;
+    }
+
+    static class Snapshot {
+        private final String name;
+        private final long evaluations;
+        private final long hits;
+        private final Money discounted;
+
+        private Snapshot(String name, long evaluations, long hits, long discounted) {
+            this.name = name;
+            this.evaluations = evaluations;
+            this.hits = hits;
+            this.discounted = Money.ofUnscaled(discounted, SCALE);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public double getHitRatio() {
+            return evaluations == 0 ? 0 : (double)hits / evaluations;
+        }
+
+        public Money getDiscounted() {
+            return discounted;
+        }
+
+        public String toString() {
+            return name + " evaluations=" + evaluations + ", hits=" + hits + ", discounted=" + discounted;
+        }
+    }
+}
+/**
+ * 할인 조건을 평가하는 순서. 적응 모드에서는 평가 일부를 표본으로 골라 모든 조건을 끝까지 평가해 조건별 비용과 적중률을 재고,
+ * 가끔 (적중률 / 평가 비용)이 큰 조건부터 오도록 순서를 다시 정한다. 평소 평가는 첫 적중에서 멈추므로 뒤 조건은
+ * "앞 조건이 모두 빗나간 경우"만 평가된다. 그 통계로 적중률을 재면 뒤 조건이 불리해지므로 표본만 쓴다. 조건은 OR로 묶여 있으므로
+ * 순서가 바뀌어도 할인 여부는 같다. 새 순서는 volatile 배열 교체로 공개되어 읽는 쪽은 락이 없다.
+ */
+class ConditionOrdering {
+    private static final int SAMPLE_ONE_IN = 64;
+    private static final int REORDER_ONE_IN = 4096;
+
+    private final LongAdder[] costNanos;
+    private final LongAdder[] costSamples;
+    private final LongAdder[] sampleHits;
+    private final AtomicBoolean reordering = new AtomicBoolean();
+    private volatile int[] order;
+    private volatile boolean adaptive;
+
+    ConditionOrdering(int size) {
+        this.order = new int[size];
+        this.costNanos = new LongAdder[size];
+        this.costSamples = new LongAdder[size];
+        this.sampleHits = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            costNanos[i] = new LongAdder();
+            costSamples[i] = new LongAdder();
+            sampleHits[i] = new LongAdder();
+        }
+    }
+
+    int[] current() {
+        return order;
+    }
+
+    void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /** 이번 평가를 표본으로 삼아 모든 조건의 비용과 적중 여부를 잴지 정한다. */
+    boolean sample() {
+        return adaptive && ThreadLocalRandom.current().nextInt(SAMPLE_ONE_IN) == 0;
+    }
+
+    void recordSample(int condition, long nanos, boolean hit) {
+        costNanos[condition].add(nanos);
+        costSamples[condition].increment();
+        if (hit) {
+            sampleHits[condition].increment();
+        }
+    }
+
+    void maybeReorder() {
+        if (!adaptive || ThreadLocalRandom.current().nextInt(REORDER_ONE_IN) != 0) {
+            return;
+        }
+        if (!reordering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reorder();
+        } finally {
+            reordering.set(false);
+        }
+    }
+
+    void reorder() {
+        int size = order.length;
+        double[] scores = new double[size];
+        double defaultCost = averageCost();
+        for (int i = 0; i < size; i++) {
+            long samples = costSamples[i].sum();
+            double cost = samples == 0 ? defaultCost : Math.max(1.0, (double)costNanos[i].sum() / samples);
+            double hitRatio = (sampleHits[i].sum() + 1.0) / (samples + 2.0);
+            scores[i] = hitRatio / cost;
+        }
+
+        Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = order[i];
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        int[] next = new int[size];
+        for (int i = 0; i < size; i++) {
+            next[i] = sorted[i];
+        }
+        this.order = next;
+    }
+
+    private double averageCost() {
+        long nanos = 0;
+        long samples = 0;
+        for (int i = 0; i < costNanos.length; i++) {
+            nanos += costNanos[i].sum();
+            samples += costSamples[i].sum();
+        }
+        return samples == 0 ? 1.0 : Math.max(1.0, (double)nanos / samples);
+    }
+}
+
 class Movie {
     private String title;
     private Duration runningTime;
     private Money fee; // 기본 요금 : 할인이 적용된 요금을 말하는 것이 아니다.
     private DCPolicy dcPolicy; // xxx
+    private MoneyRounding rounding = MoneyRounding.KRW; // 금액 정밀도
    
     public Movie(String title, Duration runningTime, Money fee, DCPolicy dcPolicy) {
         this.title = title;
@@ -180,6 +541,23 @@ class Movie {
         this.dcPolicy = dcPolicy;
     }
 
+    public void setRounding(MoneyRounding rounding) {
+        this.rounding = rounding;
+    }
+
+    public MoneyRounding getRounding() {
+        return rounding;
+    }
+
+    /** 영수증에 영화 정보를 쓴다. toString()과 같은 내용이다. */
+    public void writeTo(InvoiceWriter out) {
+        out.put("==Movie info==").newLine()
+           .put("title='").put(title).newLine()
+           .put("runningTime=").put(runningTime.toString()).newLine()
+           .put("fee=").put(fee).newLine()
+           .put("dcPolicy=").put(String.valueOf(dcPolicy)).newLine();
+    }
+
     @Override
     public String toString() {
         return  "==Movie info==" + '\n' +
@@ -190,12 +568,7 @@ class Movie {
     }
 
     public Money getFee(int sequence, LocalDateTime whenScreened) {
-        
-        if (dcPolicy.isDiscountable(sequence, whenScreened)) {
-            return dcPolicy.getFee(this.fee);
-        } else {
-            return this.fee;
-        }
+        return rounding.at(MoneyRounding.Point.TICKET, dcPolicy.getFee(sequence, whenScreened, this.fee, rounding));
     }
 }
 
@@ -204,11 +577,17 @@ class Screening {
     private int sequence;
     private LocalDateTime whenScreened;
     private Money fee;
+    private SeatMap seats; // 좌석 재고, 좌석 없이 인원만 받는 상영이면 null
 
     public Screening(Movie movie, int sequence, LocalDateTime whenScreened) {
+        this(movie, sequence, whenScreened, null);
+    }
+
+    public Screening(Movie movie, int sequence, LocalDateTime whenScreened, SeatMap seats) {
         this.movie = movie;
         this.sequence = sequence;
         this.whenScreened = whenScreened;
+        this.seats = seats;
 
         this.fee = movie.getFee(sequence, whenScreened);
     }
@@ -217,6 +596,27 @@ class Screening {
         return fee;
     }
 
+    public SeatMap getSeats() {
+        if (seats == null) {
+            throw new IllegalStateException("screening has no seat map");
+        }
+        return seats;
+    }
+
+    public MoneyRounding getRounding() {
+        return movie.getRounding();
+    }
+
+    /** toString()과 같은 내용을 writer의 버퍼에 바로 쓴다. */
+    public void writeTo(InvoiceWriter out) {
+        movie.writeTo(out);
+        out.newLine()
+           .put("==Screening info==").newLine()
+           .put("sequence=").put(sequence).newLine()
+           .put("whenScreened=").put(whenScreened).newLine()
+           .put("fee(after DC)=").put(fee).newLine();
+    }
+
     @Override
     public String toString() {
         return "" + movie + '\n' +
@@ -232,14 +632,50 @@ class Reservation {
     private Screening screening;
     private Money fee; 
     private int audienceCount; 
+    private MoneyRounding rounding;
+    private int[] seats = new int[0]; // 지정 좌석
 
     public Reservation(Customer customer, Screening screening, int audienceCount) {
         this.customer = customer;
         this.screening = screening;
-        this.fee = screening.getFee().times(audienceCount);
+        this.rounding = screening.getRounding();
+        this.fee = rounding.at(MoneyRounding.Point.LINE, screening.getFee().times(audienceCount));
         this.audienceCount = audienceCount;
     }
 
+    /** 좌석을 지정한 예매. 좌석을 한꺼번에 모두 잡지 못하면 하나도 잡지 않고 IllegalStateException */
+    public Reservation(Customer customer, Screening screening, int[] seats) {
+        this(customer, screening, seats.length);
+        if (!screening.getSeats().reserve(seats)) {
+            throw new IllegalStateException("seats not available: " + Arrays.toString(seats));
+        }
+        this.seats = seats.clone();
+    }
+
+    /** 지정 좌석을 돌려준다. */
+    public void cancel() {
+        if (seats.length > 0) {
+            screening.getSeats().release(seats);
+            seats = new int[0];
+        }
+    }
+
+    /** 예매 영수증을 쓴다. toString()과 같은 내용을 문자열을 만들지 않고 writer의 버퍼에 바로 쓴다. */
+    public void writeTo(InvoiceWriter out) {
+        customer.writeTo(out);
+        out.newLine();
+        screening.writeTo(out);
+        out.newLine()
+           .put("==Reservation info==").newLine()
+           .put("fee=").put(getBilledFee()).newLine()
+           .put("audienceCount=").put(audienceCount).newLine();
+    }
+
+    /** 영수증에 청구하는 금액 */
+    private Money getBilledFee() {
+        return rounding.at(MoneyRounding.Point.INVOICE, fee);
+    }
+
     @Override
     public String toString() {
         return  "" + 
@@ -247,12 +683,374 @@ class Reservation {
                 screening + '\n' +
         
                 "==Reservation info==" + '\n' +
-                "fee=" + fee + '\n' +
+                "fee=" + getBilledFee() + '\n' +
                 "audienceCount=" + audienceCount + '\n';
     }
 
 }
 
+/**
+ * 상영마다 좌석 비트셋 하나를 두고, 모든 상영의 비트셋을 메모리 매핑한 파일 하나에 담는 좌석 재고.
+ * 상영 번호(0부터)로 자리를 찾고, 좌석 하나가 비트 하나다. 예매는 매핑된 long을 VarHandle CAS로 바꾸므로 락이 없고,
+ * 자바 힙에 좌석 객체가 생기지 않는다. 파일에 바로 반영되므로 프로세스를 다시 띄워도 예매가 남아 있다(디스크까지는 force()).
+ * 파일이 크면 상영 단위로 나눈 여러 구간으로 매핑한다.
+ */
+class SeatInventory implements AutoCloseable {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int MAGIC = 0x53454154; // "SEAT"
+    private static final int HEADER_SIZE = 64;
+    private static final long MAX_REGION = 1L << 30;
+
+    private final FileChannel channel;
+    private final int screenings;
+    private final int seatsPerScreening;
+    private final int wordsPerScreening;
+    private final int screeningsPerRegion;
+    private final MappedByteBuffer[] regions;
+
+    /** path의 좌석 재고를 연다. 없으면 모든 좌석이 빈 상태로 만들고, 있으면 크기가 같은지 확인한다. */
+    public static SeatInventory open(Path path, int screenings, int seatsPerScreening) throws IOException {
+        if (screenings <= 0 || seatsPerScreening <= 0) {
+            throw new IllegalArgumentException("invalid inventory: " + screenings + " screenings x " + seatsPerScreening + " seats");
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() == 0) {
+                header.putInt(MAGIC).putInt(screenings).putInt(seatsPerScreening).rewind();
+                channel.write(header, 0);
+            } else {
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != screenings || header.getInt(8) != seatsPerScreening) {
+                    throw new IOException("seat inventory " + path + " has a different layout");
+                }
+            }
+            return new SeatInventory(channel, screenings, seatsPerScreening);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private SeatInventory(FileChannel channel, int screenings, int seatsPerScreening) throws IOException {
+        this.channel = channel;
+        this.screenings = screenings;
+        this.seatsPerScreening = seatsPerScreening;
+        this.wordsPerScreening = (seatsPerScreening + 63) >>> 6;
+        long bytesPerScreening = wordsPerScreening * 8L;
+        this.screeningsPerRegion = (int)Math.min(screenings, MAX_REGION / bytesPerScreening);
+        this.regions = new MappedByteBuffer[(screenings + screeningsPerRegion - 1) / screeningsPerRegion];
+        for (int i = 0; i < regions.length; i++) {
+            int count = Math.min(screeningsPerRegion, screenings - i * screeningsPerRegion);
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * screeningsPerRegion * bytesPerScreening, count * bytesPerScreening);
+        }
+    }
+
+    public SeatMap seatMap(int screening) {
+        checkScreening(screening);
+        return new SeatMap(this, screening);
+    }
+
+    /** seats를 모두 예매하거나 하나도 예매하지 않는다. 하나라도 이미 예매되어 있으면 앞서 잡은 좌석을 되돌리고 false */
+    public boolean reserve(int screening, int... seats) {
+        checkScreening(screening);
+        int[] sorted = seats.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; ) {
+            int word = wordOf(sorted[i]);
+            long mask = 0;
+            int end = i;
+            for (; end < sorted.length && wordOf(sorted[end]) == word; end++) {
+                mask |= 1L << sorted[end];
+            }
+            if (Long.bitCount(mask) != end - i || !setBits(screening, word, mask)) {
+                release(screening, Arrays.copyOf(sorted, i)); // 같은 좌석이 두 번 있거나 이미 팔린 좌석을 만났다.
+                return false;
+            }
+            i = end;
+        }
+        return true;
+    }
+
+    public void release(int screening, int... seats) {
+        checkScreening(screening);
+        for (int seat : seats) {
+            clearBits(screening, wordOf(seat), 1L << seat);
+        }
+    }
+
+    public boolean isReserved(int screening, int seat) {
+        checkScreening(screening);
+        return (word(screening, wordOf(seat)) & (1L << seat)) != 0;
+    }
+
+    /** 예매된 좌석 수. 비트만 센다. */
+    public int occupied(int screening) {
+        checkScreening(screening);
+        int count = 0;
+        for (int word = 0; word < wordsPerScreening; word++) {
+            count += Long.bitCount(word(screening, word));
+        }
+        return count;
+    }
+
+    public int available(int screening) {
+        return seatsPerScreening - occupied(screening);
+    }
+
+    public int getScreenings() {
+        return screenings;
+    }
+
+    public int getSeatsPerScreening() {
+        return seatsPerScreening;
+    }
+
+    /** 바뀐 좌석을 디스크에 내린다. */
+    public void force() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private boolean setBits(int screening, int word, long mask) {
+        MappedByteBuffer region = regionOf(screening);
+        int index = indexOf(screening, word);
+        long current;
+        do {
+            current = (long)LONGS.getVolatile(region, index);
+            if ((current & mask) != 0) {
+                return false;
+            }
+        } while (!LONGS.compareAndSet(region, index, current, current | mask));
+        return true;
+    }
+
+    private void clearBits(int screening, int word, long mask) {
+        MappedByteBuffer region = regionOf(screening);
+        int index = indexOf(screening, word);
+        long current;
+        do {
+            current = (long)LONGS.getVolatile(region, index);
+        } while (!LONGS.compareAndSet(region, index, current, current & ~mask));
+    }
+
+    private long word(int screening, int word) {
+        return (long)LONGS.getAcquire(regionOf(screening), indexOf(screening, word));
+    }
+
+    private MappedByteBuffer regionOf(int screening) {
+        return regions[screening / screeningsPerRegion];
+    }
+
+    private int indexOf(int screening, int word) {
+        return ((screening % screeningsPerRegion) * wordsPerScreening + word) * 8;
+    }
+
+    private int wordOf(int seat) {
+        if (seat < 0 || seat >= seatsPerScreening) {
+            throw new IndexOutOfBoundsException("seat " + seat + " of " + seatsPerScreening);
+        }
+        return seat >>> 6;
+    }
+
+    private void checkScreening(int screening) {
+        if (screening < 0 || screening >= screenings) {
+            throw new IndexOutOfBoundsException("screening " + screening + " of " + screenings);
+        }
+    }
+}
+/** 상영 하나의 좌석 비트셋 */
+class SeatMap {
+    private final SeatInventory inventory;
+    private final int screening;
+
+    SeatMap(SeatInventory inventory, int screening) {
+        this.inventory = inventory;
+        this.screening = screening;
+    }
+
+    public boolean reserve(int... seats) {
+        return inventory.reserve(screening, seats);
+    }
+
+    public void release(int... seats) {
+        inventory.release(screening, seats);
+    }
+
+    public boolean isReserved(int seat) {
+        return inventory.isReserved(screening, seat);
+    }
+
+    public int occupied() {
+        return inventory.occupied(screening);
+    }
+
+    public int available() {
+        return inventory.available(screening);
+    }
+}
+
+/**
+ * 영수증/청구서를 재사용하는 direct ByteBuffer에 바로 쓰고, 가득 차면 채널로 한꺼번에 내보낸다.
+ * 문자열을 이어 붙이지 않으므로 청구서를 대량으로 만들 때 String 쓰레기가 생기지 않는다. 스레드마다 하나씩 쓴다.
+ */
+class InvoiceWriter {
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final byte[] digits = new byte[20];
+    private WritableByteChannel channel;
+
+    public InvoiceWriter(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** 다음 청구서를 쓸 채널을 지정한다. 버퍼는 그대로 재사용하고, 아직 내보내지 않은 내용은 이전 채널로 먼저 보낸다. */
+    public InvoiceWriter open(WritableByteChannel channel) {
+        if (buffer.position() > 0) {
+            if (this.channel == null) {
+                throw new IllegalStateException("pending output has no channel");
+            }
+            flush();
+        }
+        this.channel = channel;
+        return this;
+    }
+
+    public InvoiceWriter put(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return putEncoded(text);
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            putByte((byte)text.charAt(i));
+        }
+        return this;
+    }
+
+    public InvoiceWriter put(char c) {
+        if (c >= 0x80) {
+            return putEncoded(String.valueOf(c));
+        }
+        return putByte((byte)c);
+    }
+
+    public InvoiceWriter put(long value) {
+        return put(value, 1);
+    }
+
+    /** 최소 width 자리가 되도록 앞을 0으로 채워 쓴다. */
+    public InvoiceWriter put(long value, int width) {
+        if (value == Long.MIN_VALUE) {
+            return put(Long.toString(value));
+        }
+        if (value < 0) {
+            putByte((byte)'-');
+            value = -value;
+        }
+
+        int length = 0;
+        do {
+            digits[length++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = length; i < width; i++) {
+            putByte((byte)'0');
+        }
+        while (length > 0) {
+            putByte(digits[--length]);
+        }
+        return this;
+    }
+
+    /** LocalDateTime.toString()과 같은 ISO-8601 형식으로 쓴다. 초와 나노초가 0이면 생략한다. */
+    public InvoiceWriter put(LocalDateTime dateTime) {
+        if (dateTime.getYear() > 9999) {
+            putByte((byte)'+');
+        }
+        put(dateTime.getYear(), 4).put('-').put(dateTime.getMonthValue(), 2).put('-').put(dateTime.getDayOfMonth(), 2)
+                .put('T').put(dateTime.getHour(), 2).put(':').put(dateTime.getMinute(), 2);
+
+        int second = dateTime.getSecond();
+        int nano = dateTime.getNano();
+        if (second == 0 && nano == 0) {
+            return this;
+        }
+        put(':').put(second, 2);
+        if (nano == 0) {
+            return this;
+        }
+        putByte((byte)'.');
+        if (nano % 1_000_000 == 0) {
+            return put(nano / 1_000_000, 3);
+        }
+        if (nano % 1_000 == 0) {
+            return put(nano / 1_000, 6);
+        }
+        return put(nano, 9);
+    }
+
+    /** 미리 인코딩해 둔 바이트를 그대로 쓴다. */
+    public InvoiceWriter put(byte[] bytes) {
+        for (byte b : bytes) {
+            putByte(b);
+        }
+        return this;
+    }
+
+    public InvoiceWriter put(Money money) {
+        money.writeTo(this);
+        return this;
+    }
+
+    public InvoiceWriter newLine() {
+        return putByte((byte)'\n');
+    }
+
+    /** 버퍼에 남은 내용을 채널로 내보낸다. 채널은 닫지 않는다. */
+    public void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private InvoiceWriter putByte(byte b) {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+        return this;
+    }
+
+    private InvoiceWriter putEncoded(CharSequence text) {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            flush();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+        return this;
+    }
+}
+
 public class TestDriver {
     public static void main(String[] args) {
         // xxx
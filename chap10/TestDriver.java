@@ -11,14 +11,15 @@ package chap10; // 중복 코드를 부모 클래스로 올려라
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
 
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     public static Money wons(long amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -29,7 +30,7 @@ class Money {
     }
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }
 
     public Money plus(Money amount) {
@@ -44,6 +45,15 @@ class Money {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
 
+    public Money times(long count) {
+        return new Money(this.amount.multiply(BigDecimal.valueOf(count)));
+    }
+
+    /** 나눠떨어지지 않으면(무한 소수) ArithmeticException */
+    public Money divide(long divisor) {
+        return new Money(this.amount.divide(BigDecimal.valueOf(divisor)));
+    }
+
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
@@ -52,6 +62,11 @@ class Money {
         return amount.compareTo(other.amount) >= 0;
     }
 
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
+
     public boolean equals(Object object) {
         if (this == object) {
             return true;
@@ -62,11 +77,16 @@ class Money {
         }
 
         Money other = (Money)object;
-        return Objects.equals(amount.doubleValue(), other.amount.doubleValue());
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액
     }
 
     public int hashCode() {
-        return Objects.hashCode(amount);
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
     }
 
     public String toString() {
@@ -77,10 +97,14 @@ class Money {
 class Call {
     private LocalDateTime from;
     private LocalDateTime to;
+    private final long fromEpochSecond;
+    private final long toEpochSecond;
 
     public Call(LocalDateTime from, LocalDateTime to) {
         this.from = from;
         this.to = to;
+        this.fromEpochSecond = from.toEpochSecond(ZoneOffset.UTC);
+        this.toEpochSecond = to.toEpochSecond(ZoneOffset.UTC);
     }
 
     public Duration getDuration() {
@@ -90,6 +114,92 @@ class Call {
     public LocalDateTime getFrom() {
         return from;
     }
+
+    public long getFromEpochSecond() {
+        return fromEpochSecond;
+    }
+
+    public long getToEpochSecond() {
+        return toEpochSecond;
+    }
+}
+/**
+ * 통화 시간을 과금 단위로 바꾸는 규칙. 시각은 epoch 초(long)로 받으므로 통화마다 Duration을 만들지 않는다.
+ * 단위 수는 정수 나눗셈으로만 구하고, 60/1 규칙의 초 단위 요금도 나머지 없이 나눠떨어질 때만 허용한다.
+ */
+class BillingUnit {
+    enum Rule {
+        /** 시작한 단위는 모두 과금한다. 10초 단위에서 11초는 2단위 */
+        CEILING,
+        /** 다 채운 단위만 과금한다. 10초 단위에서 19초는 1단위 */
+        FLOOR,
+        /** 첫 1분은 채우지 않아도 1분으로, 그 뒤로는 초 단위로 과금한다. */
+        PER_SECOND_AFTER_FIRST_MINUTE
+    }
+
+    private static final long FIRST_MINUTE = 60;
+
+    private final long unitSeconds;
+    private final Rule rule;
+
+    public BillingUnit(Duration unit, Rule rule) {
+        this(unit.getSeconds(), rule);
+    }
+
+    public BillingUnit(long unitSeconds, Rule rule) {
+        if (unitSeconds <= 0 || rule == null) {
+            throw new IllegalArgumentException("invalid billing unit: " + unitSeconds + "s " + rule);
+        }
+        this.unitSeconds = unitSeconds;
+        this.rule = rule;
+    }
+
+    /** amount를 이 단위의 요금으로 쓸 수 있는지 확인한다. 60/1 규칙은 초당 요금이 유한 소수여야 한다. */
+    public Money checked(Money amount) {
+        if (rule == Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            try {
+                amount.divide(unitSeconds);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("per-second rate of " + amount + "/" + unitSeconds + "s is not exact");
+            }
+        }
+        return amount;
+    }
+
+    /** from ~ to 통화에 과금할 단위 수. 60/1 규칙은 단위 수가 정수가 아니므로 charge()를 쓴다. */
+    public long units(long fromEpochSecond, long toEpochSecond) {
+        long seconds = toEpochSecond - fromEpochSecond;
+        switch (rule) {
+            case CEILING:
+                return seconds <= 0 ? 0 : (seconds - 1) / unitSeconds + 1;
+            case FLOOR:
+                return seconds <= 0 ? 0 : seconds / unitSeconds;
+            default:
+                throw new UnsupportedOperationException(rule + " has no whole units");
+        }
+    }
+
+    /** 단위 요금 amount로 from ~ to 통화의 요금을 계산한다. */
+    public Money charge(Money amount, long fromEpochSecond, long toEpochSecond) {
+        if (rule != Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            return amount.times(units(fromEpochSecond, toEpochSecond));
+        }
+
+        long seconds = toEpochSecond - fromEpochSecond;
+        if (seconds <= 0) {
+            return Money.ZERO;
+        }
+        long billed = Math.max(seconds, FIRST_MINUTE);
+        return billed % unitSeconds == 0 ? amount.times(billed / unitSeconds) : amount.times(billed).divide(unitSeconds);
+    }
+
+    public long getUnitSeconds() {
+        return unitSeconds;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
 }
 abstract class Phone {
     protected List<Call> calls = new ArrayList<>();
@@ -115,14 +225,18 @@ abstract class Phone {
 
 class regularPhone extends Phone {
     private Money amount;
-    private Duration seconds;
+    private BillingUnit unit;
 
     public regularPhone(Money amount, Duration seconds) {
-        this.amount = amount;
-        this.seconds = seconds;
+        this(amount, new BillingUnit(seconds, BillingUnit.Rule.CEILING));
+    }
+
+    public regularPhone(Money amount, BillingUnit unit) {
+        this.amount = unit.checked(amount);
+        this.unit = unit;
     }
     Money calculateCallFee(Call call) {
-        return amount.times(call.getDuration().getSeconds() / seconds.getSeconds());
+        return unit.charge(amount, call.getFromEpochSecond(), call.getToEpochSecond());
     }
 }
 class TaxableRegularPhone extends regularPhone {
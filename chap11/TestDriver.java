@@ -1,17 +1,37 @@
 package chap11;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
 
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
 
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     public static Money wons(long amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -22,7 +42,7 @@ class Money {
     }
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }
 
     public Money plus(Money amount) {
@@ -37,6 +57,15 @@ class Money {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
 
+    public Money times(long count) {
+        return new Money(this.amount.multiply(BigDecimal.valueOf(count)));
+    }
+
+    /** 나눠떨어지지 않으면(무한 소수) ArithmeticException */
+    public Money divide(long divisor) {
+        return new Money(this.amount.divide(BigDecimal.valueOf(divisor)));
+    }
+
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
@@ -45,6 +74,11 @@ class Money {
         return amount.compareTo(other.amount) >= 0;
     }
 
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
+
     public boolean equals(Object object) {
         if (this == object) {
             return true;
@@ -55,11 +89,16 @@ class Money {
         }
 
         Money other = (Money)object;
-        return Objects.equals(amount.doubleValue(), other.amount.doubleValue());
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액
     }
 
     public int hashCode() {
-        return Objects.hashCode(amount);
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
     }
 
     public String toString() {
@@ -70,10 +109,14 @@ class Money {
 class PhoneTime {
     private LocalDateTime startTime;
     private LocalDateTime endTime;
+    private final long startEpochSecond;
+    private final long endEpochSecond;
 
     public PhoneTime(LocalDateTime startTime, LocalDateTime endTime) {
         this.startTime = startTime;
         this.endTime = endTime;
+        this.startEpochSecond = startTime.toEpochSecond(ZoneOffset.UTC);
+        this.endEpochSecond = endTime.toEpochSecond(ZoneOffset.UTC);
     }
 
     public Duration getLength () {
@@ -82,32 +125,818 @@ class PhoneTime {
     public LocalDateTime getStartTime() {
         return startTime;
     }
+    public LocalDateTime getEndTime() {
+        return endTime;
+    }
+    public long getStartEpochSecond() {
+        return startEpochSecond;
+    }
+    public long getEndEpochSecond() {
+        return endEpochSecond;
+    }
+}
+
+/**
+ * 통화 시간을 과금 단위로 바꾸는 규칙. 시각은 epoch 초(long)로 받으므로 통화마다 Duration을 만들지 않는다.
+ * 단위 수는 정수 나눗셈으로만 구하고, 60/1 규칙의 초 단위 요금도 나머지 없이 나눠떨어질 때만 허용한다.
+ */
+class BillingUnit {
+    enum Rule {
+        /** 시작한 단위는 모두 과금한다. 10초 단위에서 11초는 2단위 */
+        CEILING,
+        /** 다 채운 단위만 과금한다. 10초 단위에서 19초는 1단위 */
+        FLOOR,
+        /** 첫 1분은 채우지 않아도 1분으로, 그 뒤로는 초 단위로 과금한다. */
+        PER_SECOND_AFTER_FIRST_MINUTE
+    }
+
+    private static final long FIRST_MINUTE = 60;
+
+    private final long unitSeconds;
+    private final Rule rule;
+
+    public BillingUnit(Duration unit, Rule rule) {
+        this(unit.getSeconds(), rule);
+    }
+
+    public BillingUnit(long unitSeconds, Rule rule) {
+        if (unitSeconds <= 0 || rule == null) {
+            throw new IllegalArgumentException("invalid billing unit: " + unitSeconds + "s " + rule);
+        }
+        this.unitSeconds = unitSeconds;
+        this.rule = rule;
+    }
+
+    /** amount를 이 단위의 요금으로 쓸 수 있는지 확인한다. 60/1 규칙은 초당 요금이 유한 소수여야 한다. */
+    public Money checked(Money amount) {
+        if (rule == Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            try {
+                amount.divide(unitSeconds);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("per-second rate of " + amount + "/" + unitSeconds + "s is not exact");
+            }
+        }
+        return amount;
+    }
+
+    /** from ~ to 통화에 과금할 단위 수. 60/1 규칙은 단위 수가 정수가 아니므로 charge()를 쓴다. */
+    public long units(long fromEpochSecond, long toEpochSecond) {
+        long seconds = toEpochSecond - fromEpochSecond;
+        switch (rule) {
+            case CEILING:
+                return seconds <= 0 ? 0 : (seconds - 1) / unitSeconds + 1;
+            case FLOOR:
+                return seconds <= 0 ? 0 : seconds / unitSeconds;
+            default:
+                throw new UnsupportedOperationException(rule + " has no whole units");
+        }
+    }
+
+    /** 단위 요금 amount로 from ~ to 통화의 요금을 계산한다. */
+    public Money charge(Money amount, long fromEpochSecond, long toEpochSecond) {
+        if (rule != Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            return amount.times(units(fromEpochSecond, toEpochSecond));
+        }
+
+        long seconds = toEpochSecond - fromEpochSecond;
+        if (seconds <= 0) {
+            return Money.ZERO;
+        }
+        long billed = Math.max(seconds, FIRST_MINUTE);
+        return billed % unitSeconds == 0 ? amount.times(billed / unitSeconds) : amount.times(billed).divide(unitSeconds);
+    }
+
+    public long getUnitSeconds() {
+        return unitSeconds;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+}
+
+/** 한 번 게시되면 바뀌지 않는 요금제 버전 */
+class RatePlan {
+    private final long version;
+    private final PhonePolicy policy;
+
+    RatePlan(long version, PhonePolicy policy) {
+        this.version = version;
+        this.policy = Objects.requireNonNull(policy);
+    }
+    public long getVersion() {
+        return version;
+    }
+    public PhonePolicy getPolicy() {
+        return policy;
+    }
+}
+
+/**
+ * 여러 가입자가 함께 바라보는 요금제 자리. publish() 한 번으로 이 자리를 구독한 모든 가입자의 요금제가 바뀐다.
+ * 계산 중인 요금은 시작할 때 읽은 버전으로 끝나고(RCU), 이후 계산부터 새 버전을 쓴다.
+ */
+class RatePlanSlot {
+    private final AtomicReference<RatePlan> current;
+
+    public RatePlanSlot(PhonePolicy policy) {
+        this.current = new AtomicReference<>(new RatePlan(1, policy));
+    }
+    public RatePlan current() {
+        return current.get();
+    }
+    public Swap publish(PhonePolicy policy) {
+        long started = System.nanoTime();
+        RatePlan previous;
+        RatePlan next;
+        do {
+            previous = current.get();
+            next = new RatePlan(previous.getVersion() + 1, policy);
+        } while (!current.compareAndSet(previous, next));
+        return new Swap(previous, next, System.nanoTime() - started);
+    }
+
+    /** 요금제 교체 결과와 교체에 걸린 시간 */
+    static class Swap {
+        private final RatePlan previous;
+        private final RatePlan next;
+        private final long latencyNanos;
+
+        private Swap(RatePlan previous, RatePlan next, long latencyNanos) {
+            this.previous = previous;
+            this.next = next;
+            this.latencyNanos = latencyNanos;
+        }
+        public RatePlan getPrevious() {
+            return previous;
+        }
+        public RatePlan getNext() {
+            return next;
+        }
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+        public String toString() {
+            return "v" + previous.getVersion() + " -> v" + next.getVersion() + " (" + latencyNanos + "ns)";
+        }
+    }
+}
+
+/**
+ * 가입자별 요금제 변경 이력. 변경 시점을 정렬된 배열로 들고 있어 통화 시작 시각에 유효한 요금제를 이분 탐색으로 찾는다.
+ * 변경할 때마다 새 타임라인을 만들어 교체하므로, 계산 중인 요금은 읽어 둔 타임라인으로 끝난다.
+ */
+class PolicyTimeline {
+    private final long[] changePoints; // 로컬 시각 기준 epoch second, 오름차순
+    private final RatePlanSlot[] plans;
+
+    static PolicyTimeline of(RatePlanSlot plan) {
+        return new PolicyTimeline(new long[] { Long.MIN_VALUE }, new RatePlanSlot[] { Objects.requireNonNull(plan) });
+    }
+
+    private PolicyTimeline(long[] changePoints, RatePlanSlot[] plans) {
+        this.changePoints = changePoints;
+        this.plans = plans;
+    }
+
+    /** effectiveFrom 이후 시작한 통화부터 plan을 적용하는 새 타임라인을 돌려준다. 같은 시점의 변경은 덮어쓴다. */
+    public PolicyTimeline with(LocalDateTime effectiveFrom, RatePlanSlot plan) {
+        long point = key(effectiveFrom);
+        int found = Arrays.binarySearch(changePoints, point);
+        if (found >= 0) {
+            RatePlanSlot[] replaced = plans.clone();
+            replaced[found] = Objects.requireNonNull(plan);
+            return new PolicyTimeline(changePoints, replaced);
+        }
+
+        int insertAt = -found - 1;
+        long[] points = new long[changePoints.length + 1];
+        RatePlanSlot[] slots = new RatePlanSlot[plans.length + 1];
+        System.arraycopy(changePoints, 0, points, 0, insertAt);
+        System.arraycopy(plans, 0, slots, 0, insertAt);
+        points[insertAt] = point;
+        slots[insertAt] = Objects.requireNonNull(plan);
+        System.arraycopy(changePoints, insertAt, points, insertAt + 1, changePoints.length - insertAt);
+        System.arraycopy(plans, insertAt, slots, insertAt + 1, plans.length - insertAt);
+        return new PolicyTimeline(points, slots);
+    }
+
+    /** when 시각에 유효한 구간의 번호 */
+    public int indexAt(LocalDateTime when) {
+        int found = Arrays.binarySearch(changePoints, key(when));
+        return found >= 0 ? found : -found - 2;
+    }
+
+    public RatePlanSlot planAt(int index) {
+        return plans[index];
+    }
+
+    public RatePlanSlot latest() {
+        return plans[plans.length - 1];
+    }
+
+    public int size() {
+        return plans.length;
+    }
+
+    private static long key(LocalDateTime when) {
+        return when.toEpochSecond(ZoneOffset.UTC);
+    }
+}
+
+/**
+ * 청크 단위로 늘어나는 통화 시간 기록. 쓰기는 가입자 단위로 직렬화하고, 읽기는 락 없이 스냅샷을 본다.
+ * 추가 중에도 요금 계산은 읽기 시작한 시점까지의 기록으로 끝난다.
+ */
+class PhoneTimeLog {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile PhoneTime[][] chunks = new PhoneTime[1][];
+    private volatile int size; // 이 값을 쓰는 순간 앞선 기록이 읽기 스레드에 공개된다.
+
+    public synchronized void append(PhoneTime phoneTime) {
+        int index = size;
+        int chunk = index >>> CHUNK_BITS;
+        PhoneTime[][] current = chunks;
+
+        if (chunk == current.length) {
+            current = Arrays.copyOf(current, current.length * 2); // 청크 목록만 복사하고 기록은 옮기지 않는다.
+            chunks = current;
+        }
+
+        if (current[chunk] == null) {
+            current[chunk] = new PhoneTime[CHUNK_SIZE];
+        }
+
+        current[chunk][index & CHUNK_MASK] = phoneTime;
+        size = index + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<PhoneTime> snapshot() {
+        int count = size;
+        return new Snapshot(chunks, count);
+    }
+
+    private static class Snapshot extends AbstractList<PhoneTime> implements RandomAccess {
+        private final PhoneTime[][] chunks;
+        private final int size;
+
+        private Snapshot(PhoneTime[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public PhoneTime get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
 
 class PhonePolicyManager {
-    private List<PhoneTime> phoneTimes = new ArrayList<>();
-    private PhonePolicy phonePolicy;
+    private final PhoneTimeLog phoneTimes = new PhoneTimeLog();
+    private volatile PolicyTimeline timeline;
+    private volatile CallJournal journal;
+    private long journalKey;
 
     public PhonePolicyManager(PhonePolicy phonePolicy) {
-        this.phonePolicy = phonePolicy;
+        this(new RatePlanSlot(phonePolicy));
+    }
+    public PhonePolicyManager(RatePlanSlot ratePlan) {
+        this.timeline = PolicyTimeline.of(ratePlan);
+    }
+    private PhonePolicyManager(List<PhoneTime> phoneTimes, RatePlanSlot ratePlan) {
+        this(ratePlan);
+        for (PhoneTime phoneTime : phoneTimes) {
+            this.phoneTimes.append(phoneTime);
+        }
     }
     public void addPhoneTimesRecord(PhoneTime phoneTime) {
-        phoneTimes.add(phoneTime);
+        CallJournal current = journal;
+        if (current != null) {
+            current.append(journalKey, phoneTime);
+        }
+        phoneTimes.append(phoneTime);
+    }
+    /** 이후의 addPhoneTimesRecord()를 목록에 넣기 전에 journal에 key로 먼저 기록한다. */
+    public void journalTo(CallJournal journal, long key) {
+        this.journalKey = key;
+        this.journal = journal; // volatile 쓰기로 key도 함께 공개한다.
+    }
+    /** 저널에서 재생한 기록을 다시 기록하지 않고 넣는다. */
+    public void restorePhoneTimesRecord(PhoneTime phoneTime) {
+        phoneTimes.append(phoneTime);
     }
+    /** 부른 시점까지의 기록 스냅샷. 이후 추가되는 기록은 보이지 않는다. */
     public List<PhoneTime> getPhoneTimes() {
-        return Collections.unmodifiableList(phoneTimes);
+        return phoneTimes.snapshot();
+    }
+    /** 이 가입자의 요금제를 과거 통화까지 포함해 통째로 바꾼다. 공유 요금제를 구독 중이었다면 그 자리에서 분리된다. */
+    public synchronized void setPhonePolicy(PhonePolicy phonePolicy) {
+        this.timeline = PolicyTimeline.of(new RatePlanSlot(phonePolicy));
+    }
+    /** 공유 요금제 자리를 구독한다. 이후 그 자리의 publish()가 이 가입자에게도 적용된다. */
+    public synchronized void subscribe(RatePlanSlot ratePlan) {
+        this.timeline = PolicyTimeline.of(ratePlan);
     }
-    public void setPhonePolicy(PhonePolicy phonePolicy) {
-        this.phonePolicy = phonePolicy;
+    /** effectiveFrom 이후에 시작한 통화부터 새 요금제를 적용한다. 이전 통화는 원래 요금제로 계산된다. */
+    public void changePhonePolicy(LocalDateTime effectiveFrom, PhonePolicy phonePolicy) {
+        changeRatePlan(effectiveFrom, new RatePlanSlot(phonePolicy));
     }
+    public synchronized void changeRatePlan(LocalDateTime effectiveFrom, RatePlanSlot ratePlan) {
+        this.timeline = timeline.with(effectiveFrom, ratePlan);
+    }
+    public RatePlan getRatePlan() {
+        return timeline.latest().current();
+    }
+    /**
+     * 통화마다 시작 시각에 유효했던 요금제로 계산한다. 구간마다 그 요금제의 기본 정책과 세금 같은 부가 정책을 적용하고,
+     * 청구서당 한 번만 적용하는 정액 할인은 최신 요금제의 것을 합계에 한 번 적용한다.
+     * 요금제 버전은 시작할 때 한 번씩만 읽으므로, 계산 도중 publish()가 일어나도 한 청구서에 두 버전이 섞이지 않는다.
+     */
     public Money calculateFee() {
-        return phonePolicy.calculateFee(this);
+        PolicyTimeline current = timeline; // 계산 도중 교체되어도 이 타임라인으로 끝까지 계산한다.
+        RatePlan[] plans = new RatePlan[current.size()];
+        for (int i = 0; i < plans.length; i++) {
+            plans[i] = current.planAt(i).current();
+        }
+        if (plans.length == 1) {
+            return plans[0].getPolicy().calculateFee(this);
+        }
+
+        List<List<PhoneTime>> segments = new ArrayList<>(plans.length);
+        for (int i = 0; i < plans.length; i++) {
+            segments.add(new ArrayList<>());
+        }
+        for (PhoneTime phoneTime : getPhoneTimes()) {
+            segments.get(current.indexAt(phoneTime.getStartTime())).add(phoneTime);
+        }
+
+        Money fee = Money.ZERO;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).isEmpty()) {
+                continue;
+            }
+            PhonePolicy policy = plans[i].getPolicy();
+            Money baseFee = policy.base().calculateFee(new PhonePolicyManager(segments.get(i), current.planAt(i)));
+            fee = fee.plus(policy.perSegment(baseFee));
+        }
+        return plans[plans.length - 1].getPolicy().perBill(fee);
+    }
+
+}
+/**
+ * 통화 시간 기록(PhoneTime)의 선기록(write-ahead) 저널. 기록은 고정 길이이고 끝에 CRC32C를 붙인다.
+ * append()는 direct 버퍼에 모았다가 버퍼가 차면 FileChannel에 쓰고, syncEvery건마다 또는 syncInterval마다
+ * 그동안 쌓인 기록을 force() 한 번으로 내린다(그룹 커밋). 마지막 force() 이후의 기록은 프로세스가 죽으면 잃을 수 있다.
+ * 열 때 남은 기록을 재생하고, CRC가 맞지 않거나 덜 쓰인 꼬리는 잘라 낸 뒤 그 자리부터 이어 쓴다.
+ */
+class CallJournal implements AutoCloseable {
+    /** key(8) 시작 초(8) 시작 나노(4) 종료 초(8) 종료 나노(4) CRC32C(4) */
+    static final int RECORD_SIZE = 36;
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - 4;
+    private static final int BATCH_RECORDS = 16 * 1024;
+
+    interface Visitor {
+        void visit(long key, PhoneTime phoneTime);
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(RECORD_SIZE * BATCH_RECORDS);
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordView = ByteBuffer.wrap(record);
+    private final CRC32C crc = new CRC32C();
+    private final int syncEvery;
+    private final ScheduledExecutorService syncer;
+    private volatile UncheckedIOException failure;
+    private boolean closed;
+    private int unsynced;
+    private long appended;
+    private long durable;
+
+    /** path의 저널을 열어 남은 기록을 visitor로 재생하고, 이후 append()는 그 뒤에 이어 쓴다. */
+    public static CallJournal open(Path path, int syncEvery, Duration syncInterval, Visitor visitor) throws IOException {
+        if (syncEvery <= 0 || syncInterval.isNegative() || syncInterval.isZero()) {
+            throw new IllegalArgumentException("invalid group commit: " + syncEvery + " records, " + syncInterval);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long valid = replay(channel, visitor);
+            channel.truncate(valid);
+            channel.position(valid);
+            return new CallJournal(channel, syncEvery, syncInterval, valid / RECORD_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private CallJournal(FileChannel channel, int syncEvery, Duration syncInterval, long replayed) {
+        this.channel = channel;
+        this.syncEvery = syncEvery;
+        this.appended = replayed;
+        this.durable = replayed;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "call-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = syncInterval.toNanos();
+        syncer.scheduleWithFixedDelay(this::syncPending, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /** 통화 한 건을 기록한다. 디스크에 내려가는 것은 다음 그룹 커밋 때다. */
+    public synchronized void append(long key, PhoneTime phoneTime) {
+        checkOpen();
+        recordView.putLong(0, key)
+                  .putLong(8, phoneTime.getStartEpochSecond())
+                  .putInt(16, phoneTime.getStartTime().getNano())
+                  .putLong(20, phoneTime.getEndEpochSecond())
+                  .putInt(28, phoneTime.getEndTime().getNano());
+        crc.reset();
+        crc.update(record, 0, PAYLOAD_SIZE);
+        recordView.putInt(PAYLOAD_SIZE, (int)crc.getValue());
+
+        if (batch.remaining() < RECORD_SIZE) {
+            write();
+        }
+        batch.put(record);
+        appended++;
+
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /** 지금까지 append()한 기록을 모두 디스크에 내린다. */
+    public synchronized void sync() {
+        checkOpen();
+        write();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        unsynced = 0;
+        durable = appended;
+    }
+
+    /** 재생한 기록을 포함해 저널에 쓴 기록 수 */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /** 그중 force()까지 끝난 기록 수 */
+    public synchronized long getDurable() {
+        return durable;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncer.shutdown();
+        try {
+            if (failure == null) {
+                sync();
+            }
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /** channel의 처음부터 올바른 기록을 재생하고, 마지막으로 올바른 기록이 끝나는 위치를 돌려준다. */
+    static long replay(FileChannel channel, Visitor visitor) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(RECORD_SIZE * BATCH_RECORDS);
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(record);
+        CRC32C crc = new CRC32C();
+        long valid = 0;
+
+        while (true) {
+            chunk.clear();
+            while (chunk.hasRemaining() && channel.read(chunk, valid + chunk.position()) > 0) {
+                // 청크가 차거나 파일 끝에 닿을 때까지 읽는다.
+            }
+            chunk.flip();
+            if (chunk.remaining() < RECORD_SIZE) {
+                return valid;
+            }
+
+            while (chunk.remaining() >= RECORD_SIZE) {
+                chunk.get(record);
+                crc.reset();
+                crc.update(record, 0, PAYLOAD_SIZE);
+                if ((int)crc.getValue() != view.getInt(PAYLOAD_SIZE)) {
+                    return valid;
+                }
+
+                LocalDateTime start = LocalDateTime.ofEpochSecond(view.getLong(8), view.getInt(16), ZoneOffset.UTC);
+                LocalDateTime end = LocalDateTime.ofEpochSecond(view.getLong(20), view.getInt(28), ZoneOffset.UTC);
+                visitor.visit(view.getLong(0), new PhoneTime(start, end));
+                valid += RECORD_SIZE;
+            }
+        }
+    }
+
+    private void write() {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        batch.clear();
+    }
+
+    private synchronized void syncPending() {
+        if (closed || unsynced == 0) {
+            return;
+        }
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            // fail()이 남겨 둔 실패를 다음 append()가 알린다.
+        }
+    }
+
+    /** 쓰기에 한 번 실패한 저널은 어디까지 내려갔는지 알 수 없으므로 이후의 쓰기를 모두 거절한다. */
+    private UncheckedIOException fail(IOException e) {
+        failure = new UncheckedIOException(e);
+        return failure;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("journal closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+/** MSISDN(long)으로 가입자를 찾는 레지스트리. 해시로 나눈 스트라이프마다 개방 주소법 테이블을 두고, 쓰기만 스트라이프 락을 잡는다. */
+class SubscriberRegistry<T> {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final long EMPTY = 0L;
+
+    private final Stripe<T>[] stripes;
+    private final int stripeShift;
+
+    public SubscriberRegistry() {
+        this(64, 1024);
+    }
+
+    @SuppressWarnings("unchecked")
+    public SubscriberRegistry(int stripeCount, int expectedSubscribers) {
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("stripeCount must be a power of two: " + stripeCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        Stripe<T>[] created = (Stripe<T>[])new Stripe<?>[stripeCount];
+        this.stripes = created;
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+        int perStripe = Math.max(16, expectedSubscribers / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe<>(perStripe);
+        }
     }
 
+    /** 락 없이 조회한다. 동시에 등록 중인 가입자는 보이지 않을 수 있다. */
+    public T get(long msisdn) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).get(msisdn, hash);
+    }
+
+    public T register(long msisdn, T subscriber) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).put(msisdn, hash, Objects.requireNonNull(subscriber));
+    }
+
+    public T computeIfAbsent(long msisdn, LongFunction<? extends T> factory) {
+        T found = get(msisdn);
+        if (found != null) {
+            return found;
+        }
+
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).putIfAbsent(msisdn, hash, factory);
+    }
+
+    public T unregister(long msisdn) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).remove(msisdn, hash);
+    }
+
+    public int size() {
+        int result = 0;
+        for (Stripe<T> stripe : stripes) {
+            result += stripe.size;
+        }
+        return result;
+    }
+
+    /** 과금 배치를 위한 전체 순회. 스트라이프마다 그 시점의 테이블을 락 없이 훑는다. */
+    public void forEach(Visitor<? super T> visitor) {
+        for (Stripe<T> stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    private Stripe<T> stripeOf(long hash) {
+        return stripes[(int)(hash >>> stripeShift) & (stripes.length - 1)]; // 스트라이프가 하나면 shift가 64라 자바는 0으로 민다.
+    }
+
+    private static long checked(long msisdn) {
+        if (msisdn == EMPTY) {
+            throw new IllegalArgumentException("msisdn must not be 0");
+        }
+        return msisdn;
+    }
+
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    interface Visitor<T> {
+        void visit(long msisdn, T subscriber);
+    }
+
+    private static class Table {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static class Stripe<T> {
+        private volatile Table table;
+        private volatile int size;
+        private int used; // 삭제된 슬롯까지 포함한 점유 수
+
+        private Stripe(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            this.table = new Table(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        private T get(long key, long hash) {
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = (long)KEYS.getAcquire(current.keys, slot);
+                if (found == key) {
+                    return (T)VALUES.getAcquire(current.values, slot);
+                }
+                if (found == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        private synchronized T put(long key, long hash, T value) {
+            return store(key, hash, value, true);
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized T putIfAbsent(long key, long hash, LongFunction<? extends T> factory) {
+            T found = get(key, hash);
+            if (found != null) {
+                return found;
+            }
+
+            T created = Objects.requireNonNull(factory.apply(key));
+            store(key, hash, created, false);
+            return created;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized T remove(long key, long hash) {
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = current.keys[slot];
+                if (found == key) {
+                    T previous = (T)current.values[slot];
+                    if (previous != null) {
+                        VALUES.setRelease(current.values, slot, null); // 키는 묘비로 남겨 탐색 사슬을 유지한다.
+                        size--;
+                    }
+                    return previous;
+                }
+                if (found == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T store(long key, long hash, T value, boolean replace) {
+            if ((used + 1) * 4 > table.keys.length * 3) {
+                rehash();
+            }
+
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = current.keys[slot];
+                if (found == key) {
+                    T previous = (T)current.values[slot];
+                    if (previous == null) {
+                        size++;
+                    }
+                    if (previous == null || replace) {
+                        VALUES.setRelease(current.values, slot, value);
+                    }
+                    return previous;
+                }
+                if (found == EMPTY) {
+                    VALUES.setRelease(current.values, slot, value);
+                    KEYS.setRelease(current.keys, slot, key); // 값을 먼저 쓰고 키를 공개한다.
+                    used++;
+                    size++;
+                    return null;
+                }
+            }
+        }
+
+        private void rehash() {
+            Table old = table;
+            int capacity = size * 2 >= old.keys.length ? old.keys.length * 2 : old.keys.length; // 묘비가 대부분이면 같은 크기로 정리만 한다.
+            Table resized = new Table(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                Object value = old.values[i];
+                if (value == null) {
+                    continue;
+                }
+                int slot = (int)hash(old.keys[i]) & resized.mask;
+                while (resized.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & resized.mask;
+                }
+                resized.keys[slot] = old.keys[i];
+                resized.values[slot] = value;
+            }
+            used = size;
+            table = resized; // volatile 쓰기로 새 테이블 전체를 한 번에 공개한다.
+        }
+
+        @SuppressWarnings("unchecked")
+        private void forEach(Visitor<? super T> visitor) {
+            Table current = table;
+            for (int i = 0; i < current.keys.length; i++) {
+                long key = (long)KEYS.getAcquire(current.keys, i);
+                if (key == EMPTY) {
+                    continue;
+                }
+                T value = (T)VALUES.getAcquire(current.values, i);
+                if (value != null) {
+                    visitor.visit(key, value);
+                }
+            }
+        }
+    }
 }
 
 interface PhonePolicy {
     Money calculateFee(PhonePolicyManager phonePolicyManager);
+
+    /** 요금 계산의 바탕이 되는 기본 정책 */
+    BasicRatePolicy base();
+
+    /** 기본 정책이 계산한 한 구간의 요금에, 청구서당 한 번만 적용하는 정책(정액 할인)을 뺀 부가 정책을 적용한다. */
+    Money perSegment(Money baseFee);
+
+    /** 구간 요금의 합계에 청구서당 한 번만 적용하는 부가 정책(정액 할인)만 적용한다. */
+    Money perBill(Money fee);
 }
 
 abstract class BasicRatePolicy implements PhonePolicy {
@@ -120,39 +949,59 @@ abstract class BasicRatePolicy implements PhonePolicy {
         return result;
     }
 
+    public BasicRatePolicy base() {
+        return this;
+    }
+
+    public Money perSegment(Money baseFee) {
+        return baseFee;
+    }
+
+    public Money perBill(Money fee) {
+        return fee;
+    }
+
     abstract Money calc(PhoneTime phoneTime);
 }
 
 class RegularPolicy extends BasicRatePolicy {
     private Money amount;
-    private Duration seconds;
+    private BillingUnit unit;
 
     public RegularPolicy(Money amount, Duration seconds) {
-        this.amount = amount;
-        this.seconds = seconds;
+        this(amount, new BillingUnit(seconds, BillingUnit.Rule.CEILING));
+    }
+
+    public RegularPolicy(Money amount, BillingUnit unit) {
+        this.amount = unit.checked(amount);
+        this.unit = unit;
     }
 
     Money calc(PhoneTime phoneTime) {
-        return amount.times(phoneTime.getLength().getSeconds() / seconds.getSeconds());
+        return unit.charge(amount, phoneTime.getStartEpochSecond(), phoneTime.getEndEpochSecond());
     }
 }
 
 class NightlyDiscountPolicy extends BasicRatePolicy {
     private Money nightlyAmount;
     private Money regularAmount;
-    private Duration seconds;
+    private BillingUnit unit;
 
     public NightlyDiscountPolicy(Money nightlyAmount, Money regularAmount, Duration seconds) {
-        this.nightlyAmount = nightlyAmount;
-        this.regularAmount = regularAmount;
-        this.seconds = seconds;
+        this(nightlyAmount, regularAmount, new BillingUnit(seconds, BillingUnit.Rule.CEILING));
+    }
+
+    public NightlyDiscountPolicy(Money nightlyAmount, Money regularAmount, BillingUnit unit) {
+        this.nightlyAmount = unit.checked(nightlyAmount);
+        this.regularAmount = unit.checked(regularAmount);
+        this.unit = unit;
     }
 
     Money calc(PhoneTime phoneTime) {
         if (phoneTime.getStartTime().getHour() >= 22) {
-            return nightlyAmount.times(phoneTime.getLength().getSeconds() / seconds.getSeconds());
+            return unit.charge(nightlyAmount, phoneTime.getStartEpochSecond(), phoneTime.getEndEpochSecond());
         }
-        return regularAmount.times(phoneTime.getLength().getSeconds() / seconds.getSeconds());
+        return unit.charge(regularAmount, phoneTime.getStartEpochSecond(), phoneTime.getEndEpochSecond());
     }
 }
 
@@ -166,6 +1015,21 @@ abstract class AdditionalRatePolicy implements PhonePolicy {
         Money fee = next.calculateFee(phonePolicyManager);
         return calc(fee);
     }
+    public BasicRatePolicy base() {
+        return next.base();
+    }
+    public Money perSegment(Money baseFee) {
+        Money fee = next.perSegment(baseFee);
+        return isPerBill() ? fee : calc(fee);
+    }
+    public Money perBill(Money fee) {
+        Money result = next.perBill(fee);
+        return isPerBill() ? calc(result) : result;
+    }
+    /** 요금제 기간이 여러 구간으로 나뉘어도 청구서당 한 번만 적용하는 정책인지 */
+    boolean isPerBill() {
+        return false;
+    }
     abstract Money calc(Money fee);
 }
 
@@ -195,6 +1059,241 @@ class RateDiscountablePolicy extends AdditionalRatePolicy {
     Money calc(Money fee) {
         return fee.minus(discountAmount);
     }
+
+    @Override
+    boolean isPerBill() {
+        return true; // 정액 할인은 요금제가 바뀐 달에도 한 번만 준다.
+    }
+}
+
+/**
+ * 요금제 정의 문법을 한 번 파싱해 공유 가능한 불변 정책 객체로 만든다.
+ * 구조가 같은 정책(하위 정책 포함)은 같은 인스턴스를 돌려주므로 가입자가 많아도 정책 사슬이 중복되지 않는다.
+ *
+ * 문법: policy := name '(' arg (',' arg)* ')'
+ *       arg    := policy | number | number ('s' | 'm' | 'h')
+ * 예: discount(taxable(regular(10, 10s), 0.1), 5)
+ */
+class PolicyCatalog {
+    private final ConcurrentHashMap<String, PhonePolicy> byDefinition = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PhonePolicy> byStructure = new ConcurrentHashMap<>();
+
+    /** 정의를 검증하고 정책을 돌려준다. 잘못된 정의는 위치를 담은 IllegalArgumentException을 던진다. */
+    public PhonePolicy compile(String definition) {
+        PhonePolicy cached = byDefinition.get(definition);
+        if (cached != null) {
+            return cached;
+        }
+
+        PhonePolicy compiled = new Parser(definition).parse().policy;
+        PhonePolicy previous = byDefinition.putIfAbsent(definition, compiled);
+        return previous != null ? previous : compiled;
+    }
+
+    /** 서로 다른 구조의 정책(하위 정책 포함) 수 */
+    public int size() {
+        return byStructure.size();
+    }
+
+    private Node intern(String key, Supplier<PhonePolicy> factory) {
+        return new Node(key, byStructure.computeIfAbsent(key, ignored -> factory.get()));
+    }
+
+    private static class Node {
+        private final String key;
+        private final PhonePolicy policy;
+
+        private Node(String key, PhonePolicy policy) {
+            this.key = key;
+            this.policy = policy;
+        }
+    }
+
+    private static class Literal {
+        private final BigDecimal value;
+        private final char unit; // 단위가 없으면 0
+
+        private Literal(BigDecimal value, char unit) {
+            this.value = value;
+            this.unit = unit;
+        }
+    }
+
+    private class Parser {
+        private final String text;
+        private int position;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Node parse() {
+            Node result = parsePolicy();
+            skipSpaces();
+            if (position != text.length()) {
+                throw error("unexpected input");
+            }
+            return result;
+        }
+
+        private Node parsePolicy() {
+            skipSpaces();
+            int start = position;
+            while (position < text.length() && Character.isLetter(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("policy name expected");
+            }
+            String name = text.substring(start, position);
+
+            expect('(');
+            List<Object> args = new ArrayList<>();
+            do {
+                args.add(parseArgument());
+                skipSpaces();
+            } while (accept(','));
+            expect(')');
+
+            return build(name, args, start);
+        }
+
+        private Object parseArgument() {
+            skipSpaces();
+            if (position < text.length() && Character.isLetter(text.charAt(position))) {
+                return parsePolicy();
+            }
+
+            int start = position;
+            while (position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+                position++;
+            }
+            if (start == position) {
+                throw error("number or policy expected");
+            }
+
+            BigDecimal value;
+            try {
+                value = new BigDecimal(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("malformed number");
+            }
+
+            char unit = 0;
+            if (position < text.length() && "smh".indexOf(text.charAt(position)) >= 0) {
+                unit = text.charAt(position++);
+            }
+            return new Literal(value, unit);
+        }
+
+        private Node build(String name, List<Object> args, int at) {
+            switch (name) {
+                case "regular": {
+                    arity(name, args, 2, at);
+                    BigDecimal amount = amount(args.get(0), at);
+                    long seconds = seconds(args.get(1), at);
+                    return intern("regular(" + canonical(amount) + "," + seconds + "s)",
+                            () -> new RegularPolicy(new Money(amount), Duration.ofSeconds(seconds)));
+                }
+                case "nightly": {
+                    arity(name, args, 3, at);
+                    BigDecimal nightlyAmount = amount(args.get(0), at);
+                    BigDecimal regularAmount = amount(args.get(1), at);
+                    long seconds = seconds(args.get(2), at);
+                    return intern("nightly(" + canonical(nightlyAmount) + "," + canonical(regularAmount) + "," + seconds + "s)",
+                            () -> new NightlyDiscountPolicy(new Money(nightlyAmount), new Money(regularAmount), Duration.ofSeconds(seconds)));
+                }
+                case "taxable": {
+                    arity(name, args, 2, at);
+                    Node next = policy(args.get(0), at);
+                    BigDecimal ratio = amount(args.get(1), at);
+                    return intern("taxable(" + next.key + "," + canonical(ratio) + ")",
+                            () -> new TaxablePolicy(next.policy, ratio.doubleValue()));
+                }
+                case "discount": {
+                    arity(name, args, 2, at);
+                    Node next = policy(args.get(0), at);
+                    BigDecimal amount = amount(args.get(1), at);
+                    return intern("discount(" + next.key + "," + canonical(amount) + ")",
+                            () -> new RateDiscountablePolicy(next.policy, new Money(amount)));
+                }
+                default:
+                    position = at;
+                    throw error("unknown policy '" + name + "'");
+            }
+        }
+
+        private void arity(String name, List<Object> args, int expected, int at) {
+            if (args.size() != expected) {
+                position = at;
+                throw error(name + " takes " + expected + " arguments");
+            }
+        }
+
+        private BigDecimal amount(Object arg, int at) {
+            if (!(arg instanceof Literal) || ((Literal)arg).unit != 0 || ((Literal)arg).value.signum() < 0) {
+                position = at;
+                throw error("non-negative number expected");
+            }
+            return ((Literal)arg).value;
+        }
+
+        private long seconds(Object arg, int at) {
+            if (!(arg instanceof Literal)) {
+                position = at;
+                throw error("duration expected");
+            }
+            Literal literal = (Literal)arg;
+            long scale = literal.unit == 'h' ? 3600 : literal.unit == 'm' ? 60 : 1;
+            try {
+                long seconds = literal.value.multiply(BigDecimal.valueOf(scale)).longValueExact();
+                if (seconds > 0) {
+                    return seconds;
+                }
+            } catch (ArithmeticException e) {
+                // 아래에서 위치와 함께 알린다.
+            }
+            position = at;
+            throw error("positive whole number of seconds expected");
+        }
+
+        private Node policy(Object arg, int at) {
+            if (!(arg instanceof Node)) {
+                position = at;
+                throw error("policy expected");
+            }
+            return (Node)arg;
+        }
+
+        private String canonical(BigDecimal value) {
+            return value.stripTrailingZeros().toPlainString();
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position + ": " + text);
+        }
+    }
 }
 
 public class TestDriver {
@@ -1,14 +1,72 @@
 package chap14;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.*;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-class Money {
+class Money implements Comparable<Money> {
     public static final Money ZERO = Money.wons(0);
 
+    private static final byte[] WON = "원".getBytes(StandardCharsets.UTF_8);
+
     private final BigDecimal amount;
+    private int hash; // 처음 hashCode()를 부를 때 정규화한 값으로 채운다.
 
     public static Money wons(long amount) {
         return new Money(BigDecimal.valueOf(amount));
@@ -19,7 +77,7 @@ class Money {
     }
 
     Money(BigDecimal amount) {
-        this.amount = amount;
+        this.amount = amount; // 연산마다 정규화하지 않는다. 자릿수만 다른 금액은 equals()/hashCode()에서 같게 본다.
     }
 
     public Money plus(Money amount) {
@@ -34,6 +92,49 @@ class Money {
         return new Money(this.amount.multiply(BigDecimal.valueOf(percent)));
     }
 
+    public Money times(long count) {
+        return new Money(this.amount.multiply(BigDecimal.valueOf(count)));
+    }
+
+    /** 나눠떨어지지 않으면(무한 소수) ArithmeticException */
+    public Money divide(long divisor) {
+        return new Money(this.amount.divide(BigDecimal.valueOf(divisor)));
+    }
+
+    /** 소수점 아래 scale 자리로 맞춘다. */
+    public Money round(int scale, RoundingMode roundingMode) {
+        return new Money(amount.setScale(scale, roundingMode));
+    }
+
+    /** 원 단위 정수로 바꾼다. 원 미만 금액은 roundingMode에 따라 처리한다. */
+    public long toWons(RoundingMode roundingMode) {
+        return amount.setScale(0, roundingMode).longValueExact();
+    }
+
+    /** 금액을 정확히 나타내는 데 필요한 소수점 아래 자릿수. 1.50원은 1, 100원은 0 */
+    public int scale() {
+        return Math.max(0, amount.stripTrailingZeros().scale());
+    }
+
+    /** 소수점 아래 scale 자리까지를 정수로 바꾼다. 예: scale이 2이면 1.5원은 150 */
+    public long toUnscaled(int scale, RoundingMode roundingMode) {
+        return amount.movePointRight(scale).setScale(0, roundingMode).longValueExact();
+    }
+
+    public static Money ofUnscaled(long unscaled, int scale) {
+        return new Money(BigDecimal.valueOf(unscaled, scale));
+    }
+
+    /** toPlainString()으로 쓴 금액을 되읽는다. */
+    public static Money parse(String plain) {
+        return new Money(new BigDecimal(plain));
+    }
+
+    /** 단위 없이 금액 숫자만. 예: 12.5 */
+    public String toPlainString() {
+        return amount.stripTrailingZeros().toPlainString();
+    }
+
     public boolean isLessThan(Money other) {
         return amount.compareTo(other.amount) < 0;
     }
@@ -42,6 +143,11 @@ class Money {
         return amount.compareTo(other.amount) >= 0;
     }
 
+    @Override
+    public int compareTo(Money other) {
+        return amount.compareTo(other.amount);
+    }
+
     public boolean equals(Object object) {
         if (this == object) {
             return true;
@@ -52,17 +158,72 @@ class Money {
         }
 
         Money other = (Money)object;
-        return Objects.equals(amount.doubleValue(), other.amount.doubleValue());
+        return amount.compareTo(other.amount) == 0; // 1.0원과 1.00원은 같은 금액
     }
 
     public int hashCode() {
-        return Objects.hashCode(amount);
+        int result = hash;
+        if (result == 0) {
+            result = amount.stripTrailingZeros().hashCode();
+            hash = result;
+        }
+        return result;
+    }
+
+    /** 청구서에 금액을 toString()과 같은 모양으로 쓴다. 소수 자리가 없는 금액은 문자열을 만들지 않고 자릿수를 바로 쓴다. */
+    public void writeTo(InvoiceWriter out) {
+        if (amount.scale() == 0 && amount.precision() <= 18) {
+            out.put(amount.longValue());
+        } else {
+            out.put(amount.toString());
+        }
+        out.put(WON);
     }
 
     public String toString() {
         return amount.toString() + "원";
     }
 }
+
+/**
+ * 요금제의 금액 정밀도. 통화 기본 소수 자릿수(scale)까지 roundingMode로 맞추며, point 단계부터 반올림한다.
+ * 통화 한 건의 요금은 통화마다, 회선 합계는 회선마다 따로 반올림하고 덧셈은 정확하므로,
+ * 순차 계산(Phone.calculateFee())과 병렬 파이프라인(RatingPipeline)이 어떤 순서로 더해도 같은 금액이 나온다.
+ */
+class MoneyRounding {
+    /** 반올림하는 단계: 통화 한 건 / 회선(전화기 한 대)의 청구 합계 / 청구서 */
+    enum Point { CALL, LINE, INVOICE }
+
+    /** 원 단위, 회선 합계마다 반올림 */
+    public static final MoneyRounding KRW = of(Currency.getInstance("KRW"), RoundingMode.HALF_UP, Point.LINE);
+
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private final Point point;
+
+    public static MoneyRounding of(Currency currency, RoundingMode roundingMode, Point point) {
+        return new MoneyRounding(Math.max(currency.getDefaultFractionDigits(), 0), roundingMode, point);
+    }
+
+    public MoneyRounding(int scale, RoundingMode roundingMode, Point point) {
+        if (scale < 0 || roundingMode == null || point == null) {
+            throw new IllegalArgumentException();
+        }
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.point = point;
+    }
+
+    /** at 단계의 금액. 반올림 단계 이후이면 scale 자리로 맞추고, 그 전이면 그대로 돌려준다. */
+    public Money at(Point at, Money amount) {
+        return at.compareTo(point) >= 0 ? amount.round(scale, roundingMode) : amount;
+    }
+
+    /** 원 단위 HALF_UP 반올림과 같은 결과를 내는지. 회선 합계 전에 원 미만을 바꾸지 않거나, 원 단위 HALF_UP으로 반올림하면 그렇다. */
+    public boolean isWholeWonsHalfUp() {
+        return point == Point.INVOICE || (scale == 0 && roundingMode == RoundingMode.HALF_UP);
+    }
+}
 class DateTimeInterval {
     private LocalDateTime from;
     private LocalDateTime to;
@@ -140,11 +301,150 @@ class DateTimeInterval {
         return "[ " + from + " - " + to + " ]";
     }
 }
+/**
+ * 시간대별 오프셋 전환 시각을 미리 계산해 둔 표. 1900년부터 2100년까지는 이분 탐색으로 오프셋을 찾고,
+ * 그 밖의 시각만 ZoneRules에 묻는다. 시간대마다 한 번만 만들어 공유한다.
+ */
+class ZoneTable {
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final long START = -2_208_988_800L; // 1900-01-01T00:00:00Z
+    private static final long LIMIT = 4_102_444_800L;  // 2100-01-01T00:00:00Z
+    private static final ConcurrentHashMap<ZoneId, ZoneTable> TABLES = new ConcurrentHashMap<>();
+
+    private final ZoneRules rules;
+    private final long[] transitions; // 전환 시각(epoch second), 오름차순
+    private final int[] offsets;      // offsets[i]: transitions[i - 1] 이후 transitions[i] 전까지의 오프셋(초)
+
+    public static ZoneTable of(ZoneId zone) {
+        return TABLES.computeIfAbsent(zone, ZoneTable::new);
+    }
+
+    private ZoneTable(ZoneId zone) {
+        this.rules = zone.getRules();
+
+        List<ZoneOffsetTransition> found = new ArrayList<>();
+        Instant cursor = Instant.ofEpochSecond(START);
+        ZoneOffsetTransition transition;
+        while ((transition = rules.nextTransition(cursor)) != null && transition.toEpochSecond() < LIMIT) {
+            found.add(transition);
+            cursor = transition.getInstant();
+        }
+
+        this.transitions = new long[found.size()];
+        this.offsets = new int[found.size() + 1];
+        offsets[0] = rules.getOffset(Instant.ofEpochSecond(START)).getTotalSeconds();
+        for (int i = 0; i < found.size(); i++) {
+            transitions[i] = found.get(i).toEpochSecond();
+            offsets[i + 1] = found.get(i).getOffsetAfter().getTotalSeconds();
+        }
+    }
+
+    /** epochSecond 시각의 UTC 오프셋(초) */
+    public int offsetAt(long epochSecond) {
+        if (epochSecond < START || epochSecond >= LIMIT) {
+            return rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+        }
+
+        int found = Arrays.binarySearch(transitions, epochSecond);
+        return offsets[found >= 0 ? found + 1 : -found - 1];
+    }
+
+    /** epochSecond 시각의 현지 날짜(epoch day) */
+    public long localEpochDay(long epochSecond) {
+        return Math.floorDiv(epochSecond + offsetAt(epochSecond), SECONDS_PER_DAY);
+    }
+
+    /** epochSecond 다음에 오는 현지 자정. 자정이 건너뛰어지는 날은 그날의 첫 순간을 돌려준다. */
+    public long startOfNextDay(long epochSecond) {
+        return toEpochSecond((localEpochDay(epochSecond) + 1) * SECONDS_PER_DAY);
+    }
+
+    public long toEpochSecond(LocalDateTime dateTime) {
+        return toEpochSecond(dateTime.toEpochSecond(ZoneOffset.UTC));
+    }
+
+    /**
+     * 현지 시각(UTC인 것처럼 센 초)을 epoch second로 바꾼다. ZonedDateTime.of와 같은 규칙을 따른다.
+     * 겹치는 시각은 전환 전 오프셋을, 건너뛴 시각은 건너뛴 만큼 뒤로 민 시각을 쓴다.
+     */
+    private long toEpochSecond(long localSecond) {
+        int before = offsetAt(localSecond - SECONDS_PER_DAY);
+        int after = offsetAt(localSecond + SECONDS_PER_DAY);
+        if (before == after) {
+            return localSecond - before;
+        }
+
+        long early = localSecond - before;
+        long late = localSecond - after;
+        if (offsetAt(early) != before && offsetAt(late) == after) {
+            return late;
+        }
+        return early;
+    }
+}
+/** epoch second로 된 구간. 일광 절약 시간 전환이 있어도 길이와 날짜 구분이 실제 경과 시간과 맞는다. */
+class ZonedInterval {
+    private final long from;
+    private final long to;
+    private final ZoneTable zone;
+
+    public static ZonedInterval of(Call call, ZoneTable zone) {
+        return new ZonedInterval(zone.toEpochSecond(call.getFrom()), zone.toEpochSecond(call.getTo()), zone);
+    }
+
+    public ZonedInterval(long from, long to, ZoneTable zone) {
+        if (to < from) {
+            throw new IllegalArgumentException();
+        }
+
+        this.from = from;
+        this.to = to;
+        this.zone = zone;
+    }
+
+    public long seconds() {
+        return to - from;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    /** 현지 자정을 기준으로 [시작, 끝) 구간을 나눠 visitor에 넘긴다. 객체를 만들지 않는다. */
+    public int splitByDay(DaySegmentVisitor visitor) {
+        int count = 0;
+        long start = from;
+
+        while (true) {
+            long next = zone.startOfNextDay(start);
+            long end = Math.min(next, to);
+            visitor.visit(zone.localEpochDay(start), start, end);
+            count++;
+
+            if (next >= to) {
+                return count;
+            }
+            start = next;
+        }
+    }
+
+    interface DaySegmentVisitor {
+        void visit(long epochDay, long from, long to);
+    }
+}
 class Call {
 	private DateTimeInterval interval;
+	private final long fromEpochSecond;
+	private final long toEpochSecond;
 
 	public Call(LocalDateTime from, LocalDateTime to) {
 		this.interval = DateTimeInterval.of(from, to);
+		this.fromEpochSecond = from.toEpochSecond(ZoneOffset.UTC);
+		this.toEpochSecond = to.toEpochSecond(ZoneOffset.UTC);
 	}
 
 	public Duration getDuration() {
@@ -159,6 +459,14 @@ class Call {
 		return interval.getTo();
 	}
 
+	public long getFromEpochSecond() {
+		return fromEpochSecond;
+	}
+
+	public long getToEpochSecond() {
+		return toEpochSecond;
+	}
+
 	public DateTimeInterval getInterval() {
 		return interval;
 	}
@@ -167,87 +475,3131 @@ class Call {
 		return interval.splitByDay();
 	}
 }
+/**
+ * 청크 단위로 늘어나는 통화 기록. 쓰기는 전화기 단위로 직렬화하고, 읽기는 락 없이 스냅샷을 본다.
+ * 기록을 줄일 때는 제자리에서 지우지 않고 retain()으로 새 기록을 만든다. 읽던 스냅샷은 그대로 유효하다.
+ */
+class CallLog {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile Call[][] chunks = new Call[1][];
+    private volatile int size; // 이 값을 쓰는 순간 앞선 기록이 읽기 스레드에 공개된다.
+    private boolean sealed;
+
+    /** 통화를 추가한다. retain()으로 닫힌 기록이면 추가하지 않고 false */
+    public synchronized boolean append(Call call) {
+        if (sealed) {
+            return false;
+        }
+
+        int index = size;
+        int chunk = index >>> CHUNK_BITS;
+        Call[][] current = chunks;
+
+        if (chunk == current.length) {
+            current = Arrays.copyOf(current, current.length * 2); // 청크 목록만 복사하고 기록은 옮기지 않는다.
+            chunks = current;
+        }
+
+        if (current[chunk] == null) {
+            current[chunk] = new Call[CHUNK_SIZE];
+        }
+
+        current[chunk][index & CHUNK_MASK] = call;
+        size = index + 1;
+        return true;
+    }
+
+    /** 이 기록을 닫고 keep을 만족하는 통화만 같은 순서로 담은 새 기록을 돌려준다. */
+    public synchronized CallLog retain(Predicate<? super Call> keep) {
+        sealed = true;
+        CallLog next = new CallLog();
+        for (Call call : snapshot()) {
+            if (keep.test(call)) {
+                next.append(call);
+            }
+        }
+        return next;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Call> snapshot() {
+        int count = size;
+        return new Snapshot(chunks, count);
+    }
+
+    private static class Snapshot extends AbstractList<Call> implements RandomAccess {
+        private final Call[][] chunks;
+        private final int size;
+
+        private Snapshot(Call[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public Call get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
 class Phone {
     private RatePolicy ratePolicy;
-    private List<Call> calls = new ArrayList<>();
+    private final MoneyRounding rounding;
+    private volatile CallLog calls = new CallLog();
+    private final DailyRollup rollup;
+    private final Map<YearMonth, CycleSummary> closedCycles = new ConcurrentSkipListMap<>();
+    private volatile CallJournal journal;
+    private long journalKey;
+    private volatile CallAnalytics analytics;
+    private long analyticsKey;
+    private String analyticsPlan;
+    private volatile CallArchive archive; // 마지막 compact()가 통화를 옮긴 곳
+    private long archiveKey;
 
     public Phone(RatePolicy ratePolicy) {
+        this(ratePolicy, MoneyRounding.KRW);
+    }
+
+    public Phone(RatePolicy ratePolicy, MoneyRounding rounding) {
         this.ratePolicy = ratePolicy;
+        this.rounding = rounding;
+        this.rollup = new DailyRollup(ratePolicy.base(), rounding);
     }
 
     public void call(Call call) {
-        calls.add(call);
+        CallJournal current = journal;
+        if (current == null) {
+            restore(call);
+            return;
+        }
+
+        synchronized (current) { // 저널 위치와 메모리의 통화가 같은 순서로 늘어나야 compact()가 둘을 맞춰 볼 수 있다.
+            current.append(journalKey, call);
+            restore(call);
+        }
+    }
+
+    /** 이후의 call()을 메모리에 넣기 전에 journal에 key로 먼저 기록한다. 전화기를 쓰기 시작하기 전에 한 번 설정한다. */
+    public void journalTo(CallJournal journal, long key) {
+        this.journalKey = key;
+        this.journal = journal; // volatile 쓰기로 key도 함께 공개한다.
+    }
+
+    /**
+     * 이후 이 전화기에 들어오는 통화(저널 재생 포함)를 analytics에 가입자 key로 함께 기록한다.
+     * 요금제 키는 CallAnalytics.planOf()로 정한다.
+     */
+    public void analyzeTo(CallAnalytics analytics, long key) {
+        this.analyticsPlan = analytics.planOf(ratePolicy);
+        this.analyticsKey = key;
+        this.analytics = analytics; // volatile 쓰기로 key와 요금제도 함께 공개한다.
+    }
+
+    /** 저널에서 재생한 통화를 다시 기록하지 않고 넣는다. */
+    public void restore(Call call) {
+        CallLog current = calls;
+        while (!current.append(call)) {
+            Thread.onSpinWait(); // compact()가 새 기록을 공개할 때까지 기다린다.
+            current = calls;
+        }
+        rollup.record(call);
+
+        CallAnalytics currentAnalytics = analytics;
+        if (currentAnalytics != null) {
+            currentAnalytics.record(analyticsPlan, analyticsKey, call);
+        }
+    }
+
+    /**
+     * openCycle 이전 달에 시작한 통화를 달마다 한 번 계산해 집계(CycleSummary)로 남기고, 통화 자체는 archive의 세그먼트로 옮긴 뒤
+     * 메모리에서 뺀다. 주기마다 세그먼트를 쓴 직후에 그 주기의 통화만 빼므로, 도중에 실패해도 통화를 잃지 않고
+     * 이미 옮긴 주기의 통화가 다음 압축 때 세그먼트에 다시 합쳐지지도 않는다. 저널에 기록하는 전화기면 주기마다 저널에 체크포인트를 남겨,
+     * 다시 시작해 저널을 재생할 때 옮긴 통화가 되살아나지 않게 한다. 이후 calculateFee()는 열린 주기만 계산하고,
+     * 링 버퍼에서 밀려난 날짜의 일별 조회는 archive의 세그먼트를 읽어 계산한다. 닫힌 주기의 통화는 archive.read(key, cycle)로 읽는다.
+     */
+    public synchronized List<CycleSummary> compact(YearMonth openCycle, CallArchive archive, long key) throws IOException {
+        LocalDateTime cutoff = openCycle.atDay(1).atStartOfDay();
+        CallJournal currentJournal = journal;
+        List<Call> snapshot;
+        long position = 0;
+        if (currentJournal == null) {
+            snapshot = getCalls();
+        } else {
+            synchronized (currentJournal) { // position 앞의 기록은 모두, 그 뒤의 기록은 하나도 스냅샷에 없다.
+                position = currentJournal.getAppended();
+                snapshot = getCalls();
+            }
+        }
+
+        Map<YearMonth, List<Call>> closed = new TreeMap<>();
+        for (Call call : snapshot) {
+            if (call.getFrom().isBefore(cutoff)) {
+                closed.computeIfAbsent(YearMonth.from(call.getFrom()), cycle -> new ArrayList<>()).add(call);
+            }
+        }
+
+        this.archiveKey = key;
+        this.archive = archive; // volatile 쓰기로 key도 함께 공개한다.
+
+        List<CycleSummary> summaries = new ArrayList<>(closed.size());
+        for (Map.Entry<YearMonth, List<Call>> entry : closed.entrySet()) {
+            List<Call> segment = archive.write(key, entry.getKey(), entry.getValue());
+            Set<Call> archived = Collections.newSetFromMap(new IdentityHashMap<>());
+            archived.addAll(entry.getValue());
+            calls = calls.retain(call -> !archived.contains(call)); // 그 사이 늦게 들어온 지난 달 통화는 다음 압축 때 옮긴다.
+            if (currentJournal != null) {
+                // 주기를 오래된 순으로 옮기므로, 여기까지 오면 이 주기가 끝나기 전에 시작한 스냅샷의 통화는 모두 세그먼트에 있다.
+                currentJournal.checkpoint(journalKey, entry.getKey().plusMonths(1).atDay(1).atStartOfDay(), position);
+            }
+
+            CycleSummary summary = summarize(entry.getKey(), segment);
+            closedCycles.put(summary.getCycle(), summary);
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    /** 압축으로 닫은 주기들의 집계, 오래된 달부터 */
+    public Collection<CycleSummary> getClosedCycles() {
+        return Collections.unmodifiableCollection(closedCycles.values());
+    }
+
+    private CycleSummary summarize(YearMonth cycle, List<Call> cycleCalls) {
+        Money baseFee = Money.ZERO;
+        long seconds = 0;
+        for (Call call : cycleCalls) {
+            baseFee = baseFee.plus(rate(call));
+            seconds += call.getToEpochSecond() - call.getFromEpochSecond();
+        }
+        Money fee = rounding.at(MoneyRounding.Point.LINE, ratePolicy.afterBase(baseFee));
+        return new CycleSummary(cycle, cycleCalls.size(), seconds, baseFee, fee);
     }
 
     public List<Call> getCalls() {
-        return Collections.unmodifiableList(calls);
+        return calls.snapshot();
+    }
+
+    /** from ~ to 날짜에 시작했을 수 있는 통화. 메모리의 통화에 더해 그 기간의 닫힌 주기 세그먼트를 archive에서 읽는다. */
+    public List<Call> getCalls(LocalDate from, LocalDate to) {
+        List<Call> result = new ArrayList<>(getCalls());
+        CallArchive current = archive;
+        if (current == null) {
+            return result;
+        }
+
+        YearMonth first = YearMonth.from(from);
+        YearMonth last = YearMonth.from(to);
+        try {
+            for (YearMonth cycle : closedCycles.keySet()) {
+                if (!cycle.isBefore(first) && !cycle.isAfter(last)) {
+                    result.addAll(current.read(archiveKey, cycle));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
     }
 
     public Money calculateFee() {
-        return ratePolicy.calculateFee(this);
+        return rounding.at(MoneyRounding.Point.LINE, ratePolicy.calculateFee(this));
+    }
+
+    public RatePolicy getRatePolicy() {
+        return ratePolicy;
+    }
+
+    public MoneyRounding getRounding() {
+        return rounding;
+    }
+
+    /**
+     * 원 단위로 반올림(HALF_UP)한 청구 금액. 기본 요금은 long으로, 부가 정책은 오차 한계를 붙인 double로 계산하고,
+     * 오차 때문에 반올림 결과가 달라질 수 있을 때만 BigDecimal로 다시 계산한다. 결과는 항상 정확한 경로와 같다.
+     * 요금제의 반올림이 원 단위 HALF_UP과 다르면 처음부터 정확한 경로로 계산한다.
+     */
+    public Money calculateFeeInWons() {
+        if (!rounding.isWholeWonsHalfUp()) {
+            return Money.wons(calculateFee().toWons(RoundingMode.HALF_UP));
+        }
+
+        try {
+            BasicRatePolicy base = ratePolicy.base();
+            long baseWons = 0;
+            for (Call call : getCalls()) {
+                baseWons = Math.addExact(baseWons, base.calcWons(call));
+            }
+
+            FastFee fee = new FastFee(baseWons);
+            if (ratePolicy.afterBase(fee)) {
+                long wons = fee.roundedWons();
+                if (wons != Long.MIN_VALUE) {
+                    return Money.wons(wons);
+                }
+            }
+        } catch (ArithmeticException e) {
+            // 원 미만 요금이나 long 범위를 넘는 합계는 정확한 경로로 계산한다.
+        }
+        return Money.wons(calculateFee().toWons(RoundingMode.HALF_UP));
+    }
+
+    /** 부가 정책을 적용하기 전, 통화 한 건의 기본 요금 */
+    public Money rate(Call call) {
+        return rounding.at(MoneyRounding.Point.CALL, ratePolicy.base().calc(call));
+    }
+
+    /** 합계를 계산하면서 통화별 요금을 bill에 채운다. bill은 비운 뒤 채운다. */
+    public ItemizedBill calculateItemizedFee(ItemizedBill bill) {
+        bill.clear();
+        bill.setTotal(rounding.at(MoneyRounding.Point.LINE, ratePolicy.calculateFee(this, bill)));
+        return bill;
+    }
+
+    /** 통화별 기본 요금과 청구 합계를 청구서로 쓴다. 문자열을 만들지 않고 writer의 버퍼에 바로 쓴다. */
+    public synchronized void writeInvoice(InvoiceWriter out, ItemizedBill bill) {
+        calculateItemizedFee(bill);
+        List<Call> calls = getCalls(); // compact()와 겹치지 않으므로 bill에 담긴 통화는 이 스냅샷의 앞부분과 같다.
+
+        out.put("==Phone invoice==").newLine();
+        for (int i = 0; i < bill.size(); i++) {
+            Call call = calls.get(i);
+            out.put(call.getFrom()).put(" ~ ").put(call.getTo())
+               .put(' ').put(call.getDuration().getSeconds()).put("s ")
+               .put(bill.getFee(i)).newLine();
+        }
+        out.put("total=").put(rounding.at(MoneyRounding.Point.INVOICE, bill.getTotal())).newLine();
+    }
+
+    /** from ~ to 사이 날짜에 쓴 요금. 전체 통화를 다시 훑지 않고 일별 소계를 더한다. */
+    public Money calculateFee(LocalDate from, LocalDate to) {
+        return rounding.at(MoneyRounding.Point.LINE, ratePolicy.afterBase(rollup.sum(from, to, this)));
+    }
+
+    /** 정정된 통화 기록이 있는 날짜의 소계만 다시 계산하도록 표시한다. */
+    public void invalidate(LocalDate day) {
+        rollup.invalidate(day);
     }
 }
-interface RatePolicy {
-    Money calculateFee(Phone phone);
-}
+/**
+ * 최근 DAYS일의 일별 소계를 링 버퍼로 유지한다. 통화는 한 번에 계산해 시작한 날짜에 넣는다.
+ * 자정을 넘는 통화를 날짜마다 나눠 계산하면 날짜마다 단위 올림이 일어나 실제 청구보다 많아지기 때문이다.
+ * 늦게 도착한 통화는 해당 날짜의 소계에만 더해지고, 링에서 밀려난 날짜는 통화 목록(압축해 옮긴 세그먼트 포함)을 다시 훑어 계산한다.
+ */
+class DailyRollup {
+    private static final int DAYS = 32;
 
-abstract class BasicRatePolicy implements RatePolicy {
-    @Override
-    public Money calculateFee(Phone phone) {
+    private final BasicRatePolicy policy;
+    private final MoneyRounding rounding;
+    private final long[] days = new long[DAYS];
+    private final Money[] subtotals = new Money[DAYS];
+    private final boolean[] stale = new boolean[DAYS];
+    private long evictedThrough = Long.MIN_VALUE; // 이 날짜까지는 링에 남아 있지 않다.
+
+    public DailyRollup(BasicRatePolicy policy, MoneyRounding rounding) {
+        this.policy = policy;
+        this.rounding = rounding;
+        Arrays.fill(days, Long.MIN_VALUE);
+    }
+
+    public synchronized void record(Call call) {
+        long day = call.getFrom().toLocalDate().toEpochDay();
+        int slot = slotOf(day);
+
+        if (days[slot] != day) {
+            if (day < days[slot] || day <= evictedThrough) {
+                return; // 링보다 오래된 날짜는 조회할 때 통화 목록에서 계산한다.
+            }
+            evictedThrough = Math.max(evictedThrough, days[slot]);
+            days[slot] = day;
+            subtotals[slot] = Money.ZERO;
+            stale[slot] = false;
+        }
+
+        if (!stale[slot]) {
+            subtotals[slot] = subtotals[slot].plus(rate(call));
+        }
+    }
+
+    public synchronized void invalidate(LocalDate date) {
+        long day = date.toEpochDay();
+        int slot = slotOf(day);
+        if (days[slot] == day) {
+            stale[slot] = true;
+        }
+    }
+
+    public synchronized Money sum(LocalDate from, LocalDate to, Phone phone) {
         Money result = Money.ZERO;
+        List<Call> history = null; // 다시 계산할 날짜가 있을 때만 한 번 읽는다. 압축된 통화도 포함한다.
 
-        for(Call call : phone.getCalls()) {
-            result = result.plus(calc(call));
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++) {
+            int slot = slotOf(day);
+
+            if (days[slot] == day) {
+                if (stale[slot]) {
+                    history = history != null ? history : phone.getCalls(from, to);
+                    subtotals[slot] = rescan(day, history);
+                    stale[slot] = false;
+                }
+                result = result.plus(subtotals[slot]);
+            } else if (day <= evictedThrough || day < days[slot]) {
+                history = history != null ? history : phone.getCalls(from, to);
+                result = result.plus(rescan(day, history));
+            }
         }
 
         return result;
     }
 
-    protected abstract Money calc(Call call);
+    private Money rescan(long day, List<Call> calls) {
+        Money result = Money.ZERO;
+
+        for (Call call : calls) {
+            if (call.getFrom().toLocalDate().toEpochDay() == day) {
+                result = result.plus(rate(call));
+            }
+        }
+
+        return result;
+    }
+
+    /** Phone.rate()와 같이 통화 단위 반올림까지 적용해 청구서와 같은 금액이 되게 한다. */
+    private Money rate(Call call) {
+        return rounding.at(MoneyRounding.Point.CALL, policy.calc(call));
+    }
+
+    private static int slotOf(long day) {
+        return (int)Math.floorMod(day, (long)DAYS);
+    }
 }
+/** 통화 상세 기록(CDR) 한 줄. 형식: msisdn,시작시각,종료시각 (ISO-8601) */
+class CallDetailRecord {
+    private final long msisdn;
+    private final Call call;
 
-class FixedFeePolicy extends BasicRatePolicy {
-    private Money amount;
-    private Duration seconds;
+    public static CallDetailRecord parse(String line) {
+        String[] fields = line.split(",");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("malformed CDR: " + line);
+        }
 
-    public FixedFeePolicy(Money amount, Duration seconds) {
-        this.amount = amount;
-        this.seconds = seconds;
+        return new CallDetailRecord(Long.parseLong(fields[0].trim()),
+                new Call(LocalDateTime.parse(fields[1].trim()), LocalDateTime.parse(fields[2].trim())));
     }
 
-    @Override
-    protected Money calc(Call call) {
-        return amount.times(call.getDuration().getSeconds() / seconds.getSeconds());
+    public CallDetailRecord(long msisdn, Call call) {
+        this.msisdn = msisdn;
+        this.call = call;
+    }
+
+    public long getMsisdn() {
+        return msisdn;
+    }
+
+    public Call getCall() {
+        return call;
     }
 }
+/**
+ * Flow 기반 처리 단계. 동시에 처리 중인 항목이 parallelism 개를 넘지 않도록 그만큼만 요청하고,
+ * 하나를 끝내야 다음 하나를 요청한다. 하류 버퍼가 가득 차면 submit()이 막히면서 상류로 배압이 전달된다.
+ * 변환 결과가 null이면 하류로 내보내지 않는다.
+ */
+class PipelineStage<I, O> extends SubmissionPublisher<O> implements Flow.Processor<I, O> {
+    private final Executor executor;
+    private final int parallelism;
+    private final Function<? super I, ? extends O> transform;
+    private final AtomicInteger pending = new AtomicInteger(1); // 처리 중인 항목 수 + 아직 끝나지 않은 상류 1
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private Flow.Subscription subscription;
 
-abstract class AdditionalRatePolicy implements RatePolicy {
-    private RatePolicy next;
+    public PipelineStage(Executor executor, int bufferSize, int parallelism, Function<? super I, ? extends O> transform) {
+        super(executor, bufferSize);
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
 
-    public AdditionalRatePolicy(RatePolicy next) {
-        this.next = next;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.transform = transform;
     }
 
     @Override
-    public Money calculateFee(Phone phone) {
-        Money fee = next.calculateFee(phone);
-        return afterCalculated(fee);
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(parallelism);
     }
 
-    abstract protected Money afterCalculated(Money fee);
+    @Override
+    public void onNext(I item) {
+        pending.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                O result = transform.apply(item);
+                if (result != null) {
+                    submit(result);
+                }
+                subscription.request(1);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                fail(e);
+            } finally {
+                release();
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        release();
+    }
+
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            close();
+            completion.complete(null);
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        closeExceptionally(throwable);
+        completion.completeExceptionally(throwable);
+    }
 }
+/**
+ * CDR 파싱 -> 전화기 찾기 -> 기본 정책으로 통화 한 건 요금 계산 -> 누적 으로 이어지는 스트리밍 요금 계산 파이프라인.
+ * 각 단계 사이에는 bufferSize 크기의 큐가 있고, 입력은 큐가 가득 차면 submit()에서 기다린다.
+ */
+class RatingPipeline implements AutoCloseable {
+    private final SubscriberRegistry<Phone> phones;
+    private final ExecutorService executor;
+    private final SubmissionPublisher<String> input;
+    private final PipelineStage<?, ?> sink;
+    private final ConcurrentHashMap<Long, Money> balances = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder unrouted = new LongAdder();
 
-class TaxablePolicy extends AdditionalRatePolicy {
-    private double taxRatio;
+    /**
+     * 파싱 → 라우팅 → 과금 → 누적 네 단계를 잇는다. 단계마다 동시에 처리할 항목 수를 따로 정한다.
+     * 통화 분석은 Phone.analyzeTo()로 전화기에 붙이면 누적 단계의 Phone.call()에서 함께 기록된다.
+     */
+    public RatingPipeline(SubscriberRegistry<Phone> phones, int bufferSize,
+                          int parseParallelism, int routeParallelism, int rateParallelism, int accumulateParallelism) {
+        this.phones = phones;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "rating-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.input = new SubmissionPublisher<>(executor, bufferSize);
 
-    public TaxablePolicy(double taxRatio, RatePolicy next) {
-        super(next);
-        this.taxRatio = taxRatio;
+        PipelineStage<String, CallDetailRecord> parse = new PipelineStage<>(executor, bufferSize, parseParallelism, this::parse);
+        PipelineStage<CallDetailRecord, RoutedCall> route = new PipelineStage<>(executor, bufferSize, routeParallelism, this::route);
+        PipelineStage<RoutedCall, RatedCall> rate = new PipelineStage<>(executor, bufferSize, rateParallelism, this::rate);
+        PipelineStage<RatedCall, Object> accumulate = new PipelineStage<>(executor, bufferSize, accumulateParallelism, this::accumulate);
+
+        input.subscribe(parse);
+        parse.subscribe(route);
+        route.subscribe(rate);
+        rate.subscribe(accumulate);
+        this.sink = accumulate;
     }
 
-    @Override
-    protected Money afterCalculated(Money fee) {
-        return fee.plus(fee.times(taxRatio));
+    /** CDR 한 줄을 넣는다. 파이프라인이 밀려 있으면 자리가 날 때까지 기다린다. */
+    public void submit(String cdr) {
+        input.submit(cdr);
+    }
+
+    /** 현재까지 누적된 실시간 잔액(부가 정책 적용 전 기본 요금 합계) */
+    public Money balanceOf(long msisdn) {
+        return balances.getOrDefault(msisdn, Money.ZERO);
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getUnrouted() {
+        return unrouted.sum();
+    }
+
+    /** 입력을 닫고 파이프라인에 남은 기록을 모두 처리할 때까지 기다린다. */
+    @Override
+    public void close() {
+        input.close();
+        try {
+            sink.completion().join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private CallDetailRecord parse(String line) {
+        try {
+            return CallDetailRecord.parse(line);
+        } catch (RuntimeException e) {
+            rejected.increment();
+            return null;
+        }
+    }
+
+    private RoutedCall route(CallDetailRecord record) {
+        Phone phone = phones.get(record.getMsisdn());
+        if (phone == null) {
+            unrouted.increment();
+            return null;
+        }
+
+        return new RoutedCall(record.getMsisdn(), phone, record.getCall());
+    }
+
+    private RatedCall rate(RoutedCall routed) {
+        return new RatedCall(routed.msisdn, routed.phone, routed.call, routed.phone.rate(routed.call));
+    }
+
+    private Object accumulate(RatedCall rated) {
+        rated.phone.call(rated.call);
+        balances.merge(rated.msisdn, rated.fee, Money::plus);
+        return null;
+    }
+
+    private static class RoutedCall {
+        private final long msisdn;
+        private final Phone phone;
+        private final Call call;
+
+        private RoutedCall(long msisdn, Phone phone, Call call) {
+            this.msisdn = msisdn;
+            this.phone = phone;
+            this.call = call;
+        }
+    }
+
+    private static class RatedCall {
+        private final long msisdn;
+        private final Phone phone;
+        private final Call call;
+        private final Money fee;
+
+        private RatedCall(long msisdn, Phone phone, Call call, Money fee) {
+            this.msisdn = msisdn;
+            this.phone = phone;
+            this.call = call;
+            this.fee = fee;
+        }
+    }
+}
+/** MSISDN(long)으로 가입자를 찾는 레지스트리. 해시로 나눈 스트라이프마다 개방 주소법 테이블을 두고, 쓰기만 스트라이프 락을 잡는다. */
+class SubscriberRegistry<T> {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final long EMPTY = 0L;
+
+    private final Stripe<T>[] stripes;
+    private final int stripeShift;
+
+    public SubscriberRegistry() {
+        this(64, 1024);
+    }
+
+    @SuppressWarnings("unchecked")
+    public SubscriberRegistry(int stripeCount, int expectedSubscribers) {
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("stripeCount must be a power of two: " + stripeCount);
+        }
+
+        @SuppressWarnings("unchecked")
+        Stripe<T>[] created = (Stripe<T>[])new Stripe<?>[stripeCount];
+        this.stripes = created;
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+        int perStripe = Math.max(16, expectedSubscribers / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe<>(perStripe);
+        }
+    }
+
+    /** 락 없이 조회한다. 동시에 등록 중인 가입자는 보이지 않을 수 있다. */
+    public T get(long msisdn) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).get(msisdn, hash);
+    }
+
+    public T register(long msisdn, T subscriber) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).put(msisdn, hash, Objects.requireNonNull(subscriber));
+    }
+
+    public T computeIfAbsent(long msisdn, LongFunction<? extends T> factory) {
+        T found = get(msisdn);
+        if (found != null) {
+            return found;
+        }
+
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).putIfAbsent(msisdn, hash, factory);
+    }
+
+    public T unregister(long msisdn) {
+        long hash = hash(checked(msisdn));
+        return stripeOf(hash).remove(msisdn, hash);
+    }
+
+    public int size() {
+        int result = 0;
+        for (Stripe<T> stripe : stripes) {
+            result += stripe.size;
+        }
+        return result;
+    }
+
+    /** 과금 배치를 위한 전체 순회. 스트라이프마다 그 시점의 테이블을 락 없이 훑는다. */
+    public void forEach(Visitor<? super T> visitor) {
+        for (Stripe<T> stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    private Stripe<T> stripeOf(long hash) {
+        return stripes[(int)(hash >>> stripeShift) & (stripes.length - 1)]; // 스트라이프가 하나면 shift가 64라 자바는 0으로 민다.
+    }
+
+    private static long checked(long msisdn) {
+        if (msisdn == EMPTY) {
+            throw new IllegalArgumentException("msisdn must not be 0");
+        }
+        return msisdn;
+    }
+
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    interface Visitor<T> {
+        void visit(long msisdn, T subscriber);
+    }
+
+    private static class Table {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static class Stripe<T> {
+        private volatile Table table;
+        private volatile int size;
+        private int used; // 삭제된 슬롯까지 포함한 점유 수
+
+        private Stripe(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            this.table = new Table(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        private T get(long key, long hash) {
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = (long)KEYS.getAcquire(current.keys, slot);
+                if (found == key) {
+                    return (T)VALUES.getAcquire(current.values, slot);
+                }
+                if (found == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        private synchronized T put(long key, long hash, T value) {
+            return store(key, hash, value, true);
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized T putIfAbsent(long key, long hash, LongFunction<? extends T> factory) {
+            T found = get(key, hash);
+            if (found != null) {
+                return found;
+            }
+
+            T created = Objects.requireNonNull(factory.apply(key));
+            store(key, hash, created, false);
+            return created;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized T remove(long key, long hash) {
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = current.keys[slot];
+                if (found == key) {
+                    T previous = (T)current.values[slot];
+                    if (previous != null) {
+                        VALUES.setRelease(current.values, slot, null); // 키는 묘비로 남겨 탐색 사슬을 유지한다.
+                        size--;
+                    }
+                    return previous;
+                }
+                if (found == EMPTY) {
+                    return null;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T store(long key, long hash, T value, boolean replace) {
+            if ((used + 1) * 4 > table.keys.length * 3) {
+                rehash();
+            }
+
+            Table current = table;
+            for (int slot = (int)hash & current.mask; ; slot = (slot + 1) & current.mask) {
+                long found = current.keys[slot];
+                if (found == key) {
+                    T previous = (T)current.values[slot];
+                    if (previous == null) {
+                        size++;
+                    }
+                    if (previous == null || replace) {
+                        VALUES.setRelease(current.values, slot, value);
+                    }
+                    return previous;
+                }
+                if (found == EMPTY) {
+                    VALUES.setRelease(current.values, slot, value);
+                    KEYS.setRelease(current.keys, slot, key); // 값을 먼저 쓰고 키를 공개한다.
+                    used++;
+                    size++;
+                    return null;
+                }
+            }
+        }
+
+        private void rehash() {
+            Table old = table;
+            int capacity = size * 2 >= old.keys.length ? old.keys.length * 2 : old.keys.length; // 묘비가 대부분이면 같은 크기로 정리만 한다.
+            Table resized = new Table(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                Object value = old.values[i];
+                if (value == null) {
+                    continue;
+                }
+                int slot = (int)hash(old.keys[i]) & resized.mask;
+                while (resized.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & resized.mask;
+                }
+                resized.keys[slot] = old.keys[i];
+                resized.values[slot] = value;
+            }
+            used = size;
+            table = resized; // volatile 쓰기로 새 테이블 전체를 한 번에 공개한다.
+        }
+
+        @SuppressWarnings("unchecked")
+        private void forEach(Visitor<? super T> visitor) {
+            Table current = table;
+            for (int i = 0; i < current.keys.length; i++) {
+                long key = (long)KEYS.getAcquire(current.keys, i);
+                if (key == EMPTY) {
+                    continue;
+                }
+                T value = (T)VALUES.getAcquire(current.values, i);
+                if (value != null) {
+                    visitor.visit(key, value);
+                }
+            }
+        }
+    }
+}
+/**
+ * 항목별 청구 내역. 통화별 기본 요금과 날짜별 통화 구간(자정 기준으로 나눈 구간의 날짜와 초)을
+ * 기본형 배열에 담는다. 합계를 계산하는 같은 순회에서 채워지므로 상세 청구서를 만드는 데 요금을 다시 계산하지 않는다.
+ * 요금은 반올림하지 않고 통화마다 필요한 소수 자릿수와 그 자릿수의 정수로 보관한다.
+ */
+class ItemizedBill {
+    private long[] fees = new long[16]; // 요금을 feeScales 자리만큼 소수점을 옮긴 정수
+    private byte[] feeScales = new byte[16];
+    private int[] segmentOffsets = new int[17]; // 통화 i의 구간은 [segmentOffsets[i], segmentOffsets[i + 1])
+    private long[] segmentDays = new long[16];
+    private long[] segmentSeconds = new long[16];
+    private int calls;
+    private int segments;
+    private Money total = Money.ZERO;
+
+    /** 같은 객체를 다음 가입자의 청구에 재사용한다. */
+    public void clear() {
+        calls = 0;
+        segments = 0;
+        total = Money.ZERO;
+    }
+
+    void add(Call call, Money fee) {
+        if (calls == fees.length) {
+            fees = Arrays.copyOf(fees, calls * 2);
+            feeScales = Arrays.copyOf(feeScales, calls * 2);
+            segmentOffsets = Arrays.copyOf(segmentOffsets, calls * 2 + 1);
+        }
+
+        int scale = fee.scale();
+        if (scale > Byte.MAX_VALUE) {
+            throw new ArithmeticException("fee has too many fraction digits: " + fee);
+        }
+        fees[calls] = fee.toUnscaled(scale, RoundingMode.UNNECESSARY); // long에 담기지 않으면 ArithmeticException
+        feeScales[calls] = (byte)scale;
+        segmentOffsets[calls] = segments;
+        for (DateTimeInterval interval : call.splitByDay()) {
+            if (segments == segmentDays.length) {
+                segmentDays = Arrays.copyOf(segmentDays, segments * 2);
+                segmentSeconds = Arrays.copyOf(segmentSeconds, segments * 2);
+            }
+            segmentDays[segments] = interval.getFrom().toLocalDate().toEpochDay();
+            segmentSeconds[segments] = interval.duration().getSeconds();
+            segments++;
+        }
+        calls++;
+        segmentOffsets[calls] = segments;
+    }
+
+    void setTotal(Money total) {
+        this.total = total;
+    }
+
+    public Money getTotal() {
+        return total;
+    }
+
+    public int size() {
+        return calls;
+    }
+
+    public Money getFee(int call) {
+        checked(call);
+        return Money.ofUnscaled(fees[call], feeScales[call]);
+    }
+
+    public int getSegmentCount(int call) {
+        checked(call);
+        return segmentOffsets[call + 1] - segmentOffsets[call];
+    }
+
+    public LocalDate getSegmentDay(int call, int segment) {
+        return LocalDate.ofEpochDay(segmentDays[segmentIndex(call, segment)]);
+    }
+
+    public long getSegmentSeconds(int call, int segment) {
+        return segmentSeconds[segmentIndex(call, segment)];
+    }
+
+    private int segmentIndex(int call, int segment) {
+        if (segment < 0 || segment >= getSegmentCount(call)) {
+            throw new IndexOutOfBoundsException();
+        }
+        return segmentOffsets[call] + segment;
+    }
+
+    private int checked(int call) {
+        if (call < 0 || call >= calls) {
+            throw new IndexOutOfBoundsException();
+        }
+        return call;
+    }
+}
+interface RatePolicy {
+    Money calculateFee(Phone phone);
+
+    /** calculateFee()와 같은 합계를 계산하면서 통화별 요금을 bill에 기록한다. */
+    Money calculateFee(Phone phone, ItemizedBill bill);
+
+    /** 요금 계산의 바탕이 되는 기본 정책 */
+    BasicRatePolicy base();
+
+    /** 기본 정책이 계산한 요금에 부가 정책을 적용한다. */
+    Money afterBase(Money baseFee);
+
+    /** afterBase()를 double로 근사하며 오차 한계를 함께 키운다. double로 계산할 수 없는 정책이 있으면 false */
+    boolean afterBase(FastFee fee);
+}
+
+abstract class BasicRatePolicy implements RatePolicy {
+    @Override
+    public Money calculateFee(Phone phone) {
+        Money result = Money.ZERO;
+
+        for(Call call : phone.getCalls()) {
+            result = result.plus(phone.getRounding().at(MoneyRounding.Point.CALL, calc(call)));
+        }
+
+        return result;
+    }
+
+    @Override
+    public Money calculateFee(Phone phone, ItemizedBill bill) {
+        Money result = Money.ZERO;
+
+        for(Call call : phone.getCalls()) {
+            Money fee = phone.getRounding().at(MoneyRounding.Point.CALL, calc(call));
+            bill.add(call, fee);
+            result = result.plus(fee);
+        }
+
+        return result;
+    }
+
+    @Override
+    public BasicRatePolicy base() {
+        return this;
+    }
+
+    @Override
+    public Money afterBase(Money baseFee) {
+        return baseFee;
+    }
+
+    @Override
+    public boolean afterBase(FastFee fee) {
+        return true;
+    }
+
+    /** 통화 한 건의 요금을 원 단위 정수로 돌려준다. 원 미만 금액이 생기면 ArithmeticException */
+    protected long calcWons(Call call) {
+        return calc(call).toUnscaled(0, RoundingMode.UNNECESSARY);
+    }
+
+    protected abstract Money calc(Call call);
+}
+
+/**
+ * 통화 시간을 과금 단위로 바꾸는 규칙. 시각은 epoch 초(long)로 받으므로 통화마다 Duration을 만들지 않는다.
+ * 단위 수는 정수 나눗셈으로만 구하고, 60/1 규칙의 초 단위 요금도 나머지 없이 나눠떨어질 때만 허용한다.
+ */
+class BillingUnit {
+    enum Rule {
+        /** 시작한 단위는 모두 과금한다. 10초 단위에서 11초는 2단위 */
+        CEILING,
+        /** 다 채운 단위만 과금한다. 10초 단위에서 19초는 1단위 */
+        FLOOR,
+        /** 첫 1분은 채우지 않아도 1분으로, 그 뒤로는 초 단위로 과금한다. */
+        PER_SECOND_AFTER_FIRST_MINUTE
+    }
+
+    private static final long FIRST_MINUTE = 60;
+
+    private final long unitSeconds;
+    private final Rule rule;
+
+    public BillingUnit(Duration unit, Rule rule) {
+        this(unit.getSeconds(), rule);
+    }
+
+    public BillingUnit(long unitSeconds, Rule rule) {
+        if (unitSeconds <= 0 || rule == null) {
+            throw new IllegalArgumentException("invalid billing unit: " + unitSeconds + "s " + rule);
+        }
+        this.unitSeconds = unitSeconds;
+        this.rule = rule;
+    }
+
+    /** amount를 이 단위의 요금으로 쓸 수 있는지 확인한다. 60/1 규칙은 초당 요금이 유한 소수여야 한다. */
+    public Money checked(Money amount) {
+        if (rule == Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            try {
+                amount.divide(unitSeconds);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("per-second rate of " + amount + "/" + unitSeconds + "s is not exact");
+            }
+        }
+        return amount;
+    }
+
+    /** from ~ to 통화에 과금할 단위 수. 60/1 규칙은 단위 수가 정수가 아니므로 charge()를 쓴다. */
+    public long units(long fromEpochSecond, long toEpochSecond) {
+        long seconds = toEpochSecond - fromEpochSecond;
+        switch (rule) {
+            case CEILING:
+                return seconds <= 0 ? 0 : (seconds - 1) / unitSeconds + 1;
+            case FLOOR:
+                return seconds <= 0 ? 0 : seconds / unitSeconds;
+            default:
+                throw new UnsupportedOperationException(rule + " has no whole units");
+        }
+    }
+
+    /** 단위 요금 amount로 from ~ to 통화의 요금을 계산한다. */
+    public Money charge(Money amount, long fromEpochSecond, long toEpochSecond) {
+        if (rule != Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+            return amount.times(units(fromEpochSecond, toEpochSecond));
+        }
+
+        long seconds = toEpochSecond - fromEpochSecond;
+        if (seconds <= 0) {
+            return Money.ZERO;
+        }
+        long billed = Math.max(seconds, FIRST_MINUTE);
+        return billed % unitSeconds == 0 ? amount.times(billed / unitSeconds) : amount.times(billed).divide(unitSeconds);
+    }
+
+    public long getUnitSeconds() {
+        return unitSeconds;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+}
+
+class FixedFeePolicy extends BasicRatePolicy {
+    private Money amount;
+    private Duration seconds;
+    private BillingUnit unit;
+
+    private long amountWons = -1; // 단위 요금이 원 단위 정수가 아니거나 단위 수가 정수가 아니면 -1
+
+    public FixedFeePolicy(Money amount, Duration seconds) {
+        this(amount, new BillingUnit(seconds, BillingUnit.Rule.CEILING));
+    }
+
+    public FixedFeePolicy(Money amount, BillingUnit unit) {
+        this.amount = unit.checked(amount);
+        this.seconds = Duration.ofSeconds(unit.getUnitSeconds());
+        this.unit = unit;
+        try {
+            if (unit.getRule() != BillingUnit.Rule.PER_SECOND_AFTER_FIRST_MINUTE) {
+                this.amountWons = amount.toUnscaled(0, RoundingMode.UNNECESSARY);
+            }
+        } catch (ArithmeticException e) {
+            // 빠른 경로를 쓰지 않는다.
+        }
+    }
+
+    @Override
+    protected Money calc(Call call) {
+        return unit.charge(amount, call.getFromEpochSecond(), call.getToEpochSecond());
+    }
+
+    @Override
+    protected long calcWons(Call call) {
+        if (amountWons < 0) {
+            return super.calcWons(call);
+        }
+        return Math.multiplyExact(amountWons, unit.units(call.getFromEpochSecond(), call.getToEpochSecond()));
+    }
+
+    public Money getAmount() {
+        return amount;
+    }
+
+    public Duration getSeconds() {
+        return seconds;
+    }
+
+    public BillingUnit getUnit() {
+        return unit;
+    }
+}
+
+abstract class AdditionalRatePolicy implements RatePolicy {
+    private RatePolicy next;
+
+    public AdditionalRatePolicy(RatePolicy next) {
+        this.next = next;
+    }
+
+    @Override
+    public Money calculateFee(Phone phone) {
+        Money fee = next.calculateFee(phone);
+        return afterCalculated(fee);
+    }
+
+    @Override
+    public Money calculateFee(Phone phone, ItemizedBill bill) {
+        Money fee = next.calculateFee(phone, bill);
+        return afterCalculated(fee);
+    }
+
+    @Override
+    public BasicRatePolicy base() {
+        return next.base();
+    }
+
+    @Override
+    public Money afterBase(Money baseFee) {
+        return afterCalculated(next.afterBase(baseFee));
+    }
+
+    @Override
+    public boolean afterBase(FastFee fee) {
+        return next.afterBase(fee) && afterCalculated(fee);
+    }
+
+    /** afterCalculated()의 double 근사. 근사할 수 없는 정책은 false를 돌려 정확한 계산으로 돌아가게 한다. */
+    protected boolean afterCalculated(FastFee fee) {
+        return false;
+    }
+
+    abstract protected Money afterCalculated(Money fee);
+}
+
+class TaxablePolicy extends AdditionalRatePolicy {
+    private double taxRatio;
+
+    public TaxablePolicy(double taxRatio, RatePolicy next) {
+        super(next);
+        this.taxRatio = taxRatio;
+    }
+
+    @Override
+    protected Money afterCalculated(Money fee) {
+        return fee.plus(fee.times(taxRatio));
+    }
+
+    @Override
+    protected boolean afterCalculated(FastFee fee) {
+        fee.addTimes(taxRatio);
+        return true;
+    }
+}
+
+/**
+ * 요금의 double 근삿값과 정확한 값(BigDecimal 경로)까지의 오차 한계.
+ * 연산마다 반올림 오차와 비율(double)을 십진수로 읽을 때의 표현 오차를 한계에 더한다.
+ */
+class FastFee {
+    private static final double EPSILON = Math.ulp(1.0); // 2^-52, 반올림 한 번의 상대 오차 2^-53보다 넉넉하다.
+
+    private double value;
+    private double error;
+
+    FastFee(long wons) {
+        this.value = wons;
+        this.error = Math.abs(wons) < (1L << 53) ? 0 : Math.ulp(value);
+    }
+
+    /** value += value * ratio. Money.times()가 BigDecimal.valueOf(ratio)를 쓰는 것과 같은 값을 근사한다. */
+    void addTimes(double ratio) {
+        double product = value * ratio;
+        double next = value + product;
+        error = error * (1 + Math.abs(ratio))
+                + Math.abs(value) * Math.ulp(ratio)
+                + (Math.abs(product) + Math.abs(next)) * EPSILON;
+        value = next;
+    }
+
+    /** 오차 범위 안의 모든 값이 같은 원 단위(HALF_UP)로 반올림되면 그 값을, 아니면 Long.MIN_VALUE */
+    long roundedWons() {
+        double slack = error + 2 * Math.ulp(value);
+        long low = (long)Math.floor(value - slack + 0.5);
+        long high = (long)Math.floor(value + slack + 0.5);
+        return low == high ? low : Long.MIN_VALUE;
+    }
+}
+
+/** 선불 잔액. 원 단위 long 하나를 CAS로만 바꾸므로 인증 경로에 락이 없다. */
+class PrepaidAccount {
+    private final AtomicLong balance;
+
+    public PrepaidAccount(long wons) {
+        this.balance = new AtomicLong(wons);
+    }
+
+    /** 잔액이 허락하는 만큼, 최대 maxUnits 단위를 한 번의 CAS로 예약하고 예약한 단위 수를 돌려준다. */
+    public int reserveUnits(long unitPrice, int maxUnits) {
+        while (true) {
+            long current = balance.get();
+            long units = Math.min(maxUnits, current / unitPrice);
+            if (units <= 0) {
+                return 0;
+            }
+            if (balance.compareAndSet(current, current - units * unitPrice)) {
+                return (int)units;
+            }
+        }
+    }
+
+    public void credit(long wons) {
+        balance.addAndGet(wons);
+    }
+
+    /** 예약보다 많이 쓴 만큼을 사후에 청구한다. 잔액이 음수가 될 수 있다. */
+    public void debit(long wons) {
+        balance.addAndGet(-wons);
+    }
+
+    public long getBalance() {
+        return balance.get();
+    }
+}
+/**
+ * 선불 실시간 과금. 통화를 연결하기 전에 authorize()로 요금 단위를 예약하고,
+ * 통화가 끝나면 settle()로 실제 요금만큼 확정하거나 release()로 예약을 돌려준다.
+ * 한 단위의 길이와 가격은 FixedFeePolicy의 요율을 그대로 쓴다.
+ */
+class PrepaidCharger {
+    private final FixedFeePolicy rate;
+    private final long unitPrice;
+    private final int unitsPerGrant;
+
+    public PrepaidCharger(FixedFeePolicy rate, int unitsPerGrant) {
+        if (unitsPerGrant <= 0) {
+            throw new IllegalArgumentException("unitsPerGrant must be positive: " + unitsPerGrant);
+        }
+
+        this.rate = rate;
+        this.unitPrice = rate.getAmount().toWons(RoundingMode.UP);
+        this.unitsPerGrant = unitsPerGrant;
+    }
+
+    public Grant authorize(PrepaidAccount account) {
+        int units = unitPrice == 0 ? unitsPerGrant : account.reserveUnits(unitPrice, unitsPerGrant);
+        return new Grant(units, units * unitPrice, rate.getSeconds().multipliedBy(units));
+    }
+
+    /** 통화가 끝나면 예약과 실제 요금의 차이를 정산한다. 이미 정산하거나 해제한 예약이면 IllegalStateException */
+    public Money settle(PrepaidAccount account, Grant grant, Call call) {
+        grant.use();
+        Money fee = rate.calc(call);
+        long charged = fee.toWons(RoundingMode.UP);
+        long difference = grant.getReserved() - charged;
+
+        if (difference > 0) {
+            account.credit(difference);
+        } else if (difference < 0) {
+            account.debit(-difference);
+        }
+
+        return fee;
+    }
+
+    /** 연결되지 않은 통화의 예약을 돌려준다. 이미 정산하거나 해제한 예약이면 IllegalStateException */
+    public void release(PrepaidAccount account, Grant grant) {
+        grant.use();
+        account.credit(grant.getReserved());
+    }
+
+    /** 예약된 단위와 금액, 그 금액으로 허용되는 통화 시간. 정산이나 해제는 한 번만 할 수 있다. */
+    static class Grant {
+        private final int units;
+        private final long reserved;
+        private final Duration allowed;
+        private final AtomicBoolean used = new AtomicBoolean();
+
+        private Grant(int units, long reserved, Duration allowed) {
+            this.units = units;
+            this.reserved = reserved;
+            this.allowed = allowed;
+        }
+
+        public boolean isGranted() {
+            return units > 0;
+        }
+
+        /** 통화가 길어져 추가로 받은 예약을 합친다. 합친 두 예약은 쓴 것으로 보고, 이후에는 합친 예약으로만 정산한다. */
+        public Grant plus(Grant other) {
+            if (this == other) {
+                throw new IllegalArgumentException("cannot add a grant to itself");
+            }
+            use();
+            try {
+                other.use();
+            } catch (IllegalStateException e) {
+                used.set(false); // 합치지 못했으면 이 예약은 그대로 남긴다.
+                throw e;
+            }
+            return new Grant(units + other.units, reserved + other.reserved, allowed.plus(other.allowed));
+        }
+
+        public int getUnits() {
+            return units;
+        }
+
+        public long getReserved() {
+            return reserved;
+        }
+
+        public Duration getAllowed() {
+            return allowed;
+        }
+
+        private void use() {
+            if (!used.compareAndSet(false, true)) {
+                throw new IllegalStateException("grant already settled or released");
+            }
+        }
+    }
+}
+
+/**
+ * 통화 기록의 선기록(write-ahead) 저널. 기록은 고정 길이이고 끝에 CRC32C를 붙인다.
+ * append()는 direct 버퍼에 모았다가 버퍼가 차면 FileChannel에 쓰고, syncEvery건마다 또는 syncInterval마다
+ * 그동안 쌓인 기록을 force() 한 번으로 내린다(그룹 커밋). 마지막 force() 이후의 기록은 프로세스가 죽으면 잃을 수 있다.
+ * 열 때 남은 기록을 재생하고, CRC가 맞지 않거나 덜 쓰인 꼬리는 잘라 낸 뒤 그 자리부터 이어 쓴다.
+ * 압축으로 세그먼트에 옮긴 통화는 옆의 체크포인트 파일(경로 + ".checkpoint")에 가입자별 기준 시각과 저널 위치로 남기고,
+ * 재생할 때 그 위치 앞에서 기준 시각 전에 시작한 그 가입자의 통화는 건너뛴다.
+ */
+class CallJournal implements AutoCloseable {
+    /** key(8) 시작 초(8) 시작 나노(4) 종료 초(8) 종료 나노(4) CRC32C(4) */
+    static final int RECORD_SIZE = 36;
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - 4;
+    private static final int BATCH_RECORDS = 16 * 1024;
+    /** key(8) 기준 시각 초(8) 저널 위치(8) CRC32C(4) */
+    static final int CHECKPOINT_SIZE = 28;
+
+    interface Visitor {
+        void visit(long key, Call call);
+    }
+
+    private final FileChannel channel;
+    private final FileChannel checkpoints;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(RECORD_SIZE * BATCH_RECORDS);
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordView = ByteBuffer.wrap(record);
+    private final CRC32C crc = new CRC32C();
+    private final int syncEvery;
+    private final ScheduledExecutorService syncer;
+    private volatile UncheckedIOException failure;
+    private boolean closed;
+    private int unsynced;
+    private long appended;
+    private long durable;
+
+    /** path의 저널을 열어 남은 기록을 visitor로 재생하고, 이후 append()는 그 뒤에 이어 쓴다. */
+    public static CallJournal open(Path path, int syncEvery, Duration syncInterval, Visitor visitor) throws IOException {
+        if (syncEvery <= 0 || syncInterval.isNegative() || syncInterval.isZero()) {
+            throw new IllegalArgumentException("invalid group commit: " + syncEvery + " records, " + syncInterval);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel checkpoints = null;
+        try {
+            checkpoints = FileChannel.open(path.resolveSibling(path.getFileName() + ".checkpoint"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Map<Long, List<long[]>> compacted = new HashMap<>();
+            long checkpointed = readCheckpoints(checkpoints, compacted);
+            checkpoints.truncate(checkpointed);
+            checkpoints.position(checkpointed);
+
+            long valid = replay(channel, (position, key, call) -> {
+                if (!isCompacted(compacted.get(key), position, call)) {
+                    visitor.visit(key, call);
+                }
+            });
+            channel.truncate(valid);
+            channel.position(valid);
+            return new CallJournal(channel, checkpoints, syncEvery, syncInterval, valid / RECORD_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (checkpoints != null) {
+                checkpoints.close();
+            }
+            throw e;
+        }
+    }
+
+    private CallJournal(FileChannel channel, FileChannel checkpoints, int syncEvery, Duration syncInterval, long replayed) {
+        this.channel = channel;
+        this.checkpoints = checkpoints;
+        this.syncEvery = syncEvery;
+        this.appended = replayed;
+        this.durable = replayed;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "call-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = syncInterval.toNanos();
+        syncer.scheduleWithFixedDelay(this::syncPending, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /** 통화 한 건을 기록한다. 디스크에 내려가는 것은 다음 그룹 커밋 때다. */
+    public synchronized void append(long key, Call call) {
+        checkOpen();
+        recordView.putLong(0, key)
+                  .putLong(8, call.getFromEpochSecond())
+                  .putInt(16, call.getFrom().getNano())
+                  .putLong(20, call.getToEpochSecond())
+                  .putInt(28, call.getTo().getNano());
+        crc.reset();
+        crc.update(record, 0, PAYLOAD_SIZE);
+        recordView.putInt(PAYLOAD_SIZE, (int)crc.getValue());
+
+        if (batch.remaining() < RECORD_SIZE) {
+            write();
+        }
+        batch.put(record);
+        appended++;
+
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /** 지금까지 append()한 기록을 모두 디스크에 내린다. */
+    public synchronized void sync() {
+        checkOpen();
+        write();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        unsynced = 0;
+        durable = appended;
+    }
+
+    /**
+     * key 가입자의 통화 중 저널 위치 position 앞에 기록되었고 cutoff 전에 시작한 통화는 모두 세그먼트에 옮겼다고 남긴다.
+     * 세그먼트를 디스크에 내린 뒤에 부르며, 돌아오면 체크포인트도 디스크에 있다. 이후 재생은 그 통화들을 건너뛴다.
+     */
+    public synchronized void checkpoint(long key, LocalDateTime cutoff, long position) {
+        checkOpen();
+        if (cutoff.getNano() != 0) {
+            throw new IllegalArgumentException("cutoff must be a whole second: " + cutoff);
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        entry.putLong(key).putLong(cutoff.toEpochSecond(ZoneOffset.UTC)).putLong(position);
+        CRC32C checksum = new CRC32C();
+        checksum.update(entry.array(), 0, CHECKPOINT_SIZE - 4);
+        entry.putInt((int)checksum.getValue()).flip();
+        try {
+            while (entry.hasRemaining()) {
+                checkpoints.write(entry);
+            }
+            checkpoints.force(false);
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    /** 재생한 기록을 포함해 저널에 쓴 기록 수. 다음 append()가 쓸 저널 위치이기도 하다. */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /** 그중 force()까지 끝난 기록 수 */
+    public synchronized long getDurable() {
+        return durable;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncer.shutdown();
+        try {
+            if (failure == null) {
+                sync();
+            }
+        } finally {
+            closed = true;
+            try (checkpoints) {
+                channel.close();
+            }
+        }
+    }
+
+    interface PositionedVisitor {
+        void visit(long position, long key, Call call);
+    }
+
+    /** channel의 처음부터 올바른 기록을 재생하고, 마지막으로 올바른 기록이 끝나는 위치를 돌려준다. */
+    static long replay(FileChannel channel, PositionedVisitor visitor) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(RECORD_SIZE * BATCH_RECORDS);
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(record);
+        CRC32C crc = new CRC32C();
+        long valid = 0;
+
+        while (true) {
+            chunk.clear();
+            while (chunk.hasRemaining() && channel.read(chunk, valid + chunk.position()) > 0) {
+                // 청크가 차거나 파일 끝에 닿을 때까지 읽는다.
+            }
+            chunk.flip();
+            if (chunk.remaining() < RECORD_SIZE) {
+                return valid;
+            }
+
+            while (chunk.remaining() >= RECORD_SIZE) {
+                chunk.get(record);
+                crc.reset();
+                crc.update(record, 0, PAYLOAD_SIZE);
+                if ((int)crc.getValue() != view.getInt(PAYLOAD_SIZE)) {
+                    return valid;
+                }
+
+                LocalDateTime from = LocalDateTime.ofEpochSecond(view.getLong(8), view.getInt(16), ZoneOffset.UTC);
+                LocalDateTime to = LocalDateTime.ofEpochSecond(view.getLong(20), view.getInt(28), ZoneOffset.UTC);
+                visitor.visit(valid / RECORD_SIZE, view.getLong(0), new Call(from, to));
+                valid += RECORD_SIZE;
+            }
+        }
+    }
+
+    /** 올바른 체크포인트를 가입자별 {기준 시각 초, 저널 위치} 목록으로 읽고, 마지막으로 올바른 체크포인트가 끝나는 위치를 돌려준다. */
+    private static long readCheckpoints(FileChannel checkpoints, Map<Long, List<long[]>> compacted) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        CRC32C checksum = new CRC32C();
+        long valid = 0;
+
+        while (true) {
+            entry.clear();
+            while (entry.hasRemaining() && checkpoints.read(entry, valid + entry.position()) > 0) {
+                // 한 건이 다 찰 때까지 읽는다.
+            }
+            if (entry.hasRemaining()) {
+                return valid;
+            }
+
+            checksum.reset();
+            checksum.update(entry.array(), 0, CHECKPOINT_SIZE - 4);
+            if ((int)checksum.getValue() != entry.getInt(CHECKPOINT_SIZE - 4)) {
+                return valid;
+            }
+            compacted.computeIfAbsent(entry.getLong(0), key -> new ArrayList<>()).add(new long[] { entry.getLong(8), entry.getLong(16) });
+            valid += CHECKPOINT_SIZE;
+        }
+    }
+
+    private static boolean isCompacted(List<long[]> marks, long position, Call call) {
+        if (marks == null) {
+            return false;
+        }
+        for (long[] mark : marks) {
+            if (position < mark[1] && call.getFromEpochSecond() < mark[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write() {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        }
+        batch.clear();
+    }
+
+    private synchronized void syncPending() {
+        if (closed || unsynced == 0) {
+            return;
+        }
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            // fail()이 남겨 둔 실패를 다음 append()가 알린다.
+        }
+    }
+
+    /** 쓰기에 한 번 실패한 저널은 어디까지 내려갔는지 알 수 없으므로 이후의 쓰기를 모두 거절한다. */
+    private UncheckedIOException fail(IOException e) {
+        failure = new UncheckedIOException(e);
+        return failure;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("journal closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+
+/** 닫힌 청구 주기(월) 하나의 집계. 주기의 통화 목록은 CallArchive 세그먼트에 있다. */
+class CycleSummary {
+    private final YearMonth cycle;
+    private final int calls;
+    private final long seconds;
+    private final Money baseFee;
+    private final Money fee;
+
+    CycleSummary(YearMonth cycle, int calls, long seconds, Money baseFee, Money fee) {
+        this.cycle = cycle;
+        this.calls = calls;
+        this.seconds = seconds;
+        this.baseFee = baseFee;
+        this.fee = fee;
+    }
+
+    public YearMonth getCycle() {
+        return cycle;
+    }
+
+    public int getCalls() {
+        return calls;
+    }
+
+    public long getSeconds() {
+        return seconds;
+    }
+
+    /** 부가 정책을 적용하기 전 기본 요금 합계 */
+    public Money getBaseFee() {
+        return baseFee;
+    }
+
+    /** 부가 정책까지 적용한 청구 금액 */
+    public Money getFee() {
+        return fee;
+    }
+
+    @Override
+    public String toString() {
+        return cycle + " calls=" + calls + " seconds=" + seconds + " fee=" + fee;
+    }
+}
+/**
+ * 닫힌 청구 주기의 통화를 가입자(key)와 주기(월)마다 세그먼트 파일 하나로 보관한다.
+ * 세그먼트는 시작 시각 순으로 정렬한 통화를 이전 통화와의 차이만 가변 길이 정수로 적은 뒤 GZIP으로 압축한다(CRC 포함).
+ * 분쟁 조회처럼 드물게 필요할 때만 read()로 풀어 읽는다.
+ */
+class CallArchive {
+    private static final int MAGIC = 0x43414C4C; // "CALL"
+
+    private final Path directory;
+
+    public CallArchive(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * key의 cycle 세그먼트에 calls를 더해 쓰고, 세그먼트에 든 전체 통화를 돌려준다.
+     * 임시 파일에 다 쓰고 디스크에 내린(force) 뒤 원자적으로 바꾸므로, 돌아온 뒤에는 전원이 나가도 세그먼트가 남는다.
+     */
+    public synchronized List<Call> write(long key, YearMonth cycle, List<Call> calls) throws IOException {
+        List<Call> merged = new ArrayList<>(read(key, cycle));
+        merged.addAll(calls);
+        merged.sort(Comparator.comparingLong(Call::getFromEpochSecond).thenComparingInt(call -> call.getFrom().getNano()));
+
+        Path segment = segment(key, cycle);
+        Path temporary = segment.resolveSibling(segment.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temporary))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(merged.size());
+            long previous = 0;
+            for (Call call : merged) {
+                writeVarLong(out, call.getFromEpochSecond() - previous);
+                writeVarLong(out, call.getFrom().getNano());
+                writeVarLong(out, call.getToEpochSecond() - call.getFromEpochSecond());
+                writeVarLong(out, call.getTo().getNano());
+                previous = call.getFromEpochSecond();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true); // fsync는 파일 단위이므로 스트림을 닫은 뒤 다시 열어도 같은 내용을 내린다.
+        }
+        Files.move(temporary, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        return merged;
+    }
+
+    /** key의 cycle 세그먼트를 풀어 읽는다. 세그먼트가 없으면 빈 목록 */
+    public synchronized List<Call> read(long key, YearMonth cycle) throws IOException {
+        Path segment = segment(key, cycle);
+        if (!Files.exists(segment)) {
+            return List.of();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(segment))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a call segment: " + segment);
+            }
+            int count = in.readInt();
+            List<Call> calls = new ArrayList<>(count);
+            long from = 0;
+            for (int i = 0; i < count; i++) {
+                from += readVarLong(in);
+                int fromNano = (int)readVarLong(in);
+                long to = from + readVarLong(in);
+                int toNano = (int)readVarLong(in);
+                calls.add(new Call(LocalDateTime.ofEpochSecond(from, fromNano, ZoneOffset.UTC),
+                        LocalDateTime.ofEpochSecond(to, toNano, ZoneOffset.UTC)));
+            }
+            return calls;
+        }
+    }
+
+    private Path segment(long key, YearMonth cycle) {
+        return directory.resolve(key + "-" + cycle + ".seg");
+    }
+
+    /** 이름 바꾸기를 디스크에 내린다. 디렉터리를 채널로 열 수 없는 플랫폼(Windows)에서는 건너뛴다. */
+    private void forceDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /** zigzag로 부호를 없앤 뒤 7비트씩 쓴다. */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int)(zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte((int)zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
+
+/**
+ * 영수증/청구서를 재사용하는 direct ByteBuffer에 바로 쓰고, 가득 차면 채널로 한꺼번에 내보낸다.
+ * 문자열을 이어 붙이지 않으므로 청구서를 대량으로 만들 때 String 쓰레기가 생기지 않는다. 스레드마다 하나씩 쓴다.
+ */
+class InvoiceWriter {
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final byte[] digits = new byte[20];
+    private WritableByteChannel channel;
+
+    public InvoiceWriter(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** 다음 청구서를 쓸 채널을 지정한다. 버퍼는 그대로 재사용하고, 아직 내보내지 않은 내용은 이전 채널로 먼저 보낸다. */
+    public InvoiceWriter open(WritableByteChannel channel) {
+        if (buffer.position() > 0) {
+            if (this.channel == null) {
+                throw new IllegalStateException("pending output has no channel");
+            }
+            flush();
+        }
+        this.channel = channel;
+        return this;
+    }
+
+    public InvoiceWriter put(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return putEncoded(text);
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            putByte((byte)text.charAt(i));
+        }
+        return this;
+    }
+
+    public InvoiceWriter put(char c) {
+        if (c >= 0x80) {
+            return putEncoded(String.valueOf(c));
+        }
+        return putByte((byte)c);
+    }
+
+    public InvoiceWriter put(long value) {
+        return put(value, 1);
+    }
+
+    /** 최소 width 자리가 되도록 앞을 0으로 채워 쓴다. */
+    public InvoiceWriter put(long value, int width) {
+        if (value == Long.MIN_VALUE) {
+            return put(Long.toString(value));
+        }
+        if (value < 0) {
+            putByte((byte)'-');
+            value = -value;
+        }
+
+        int length = 0;
+        do {
+            digits[length++] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = length; i < width; i++) {
+            putByte((byte)'0');
+        }
+        while (length > 0) {
+            putByte(digits[--length]);
+        }
+        return this;
+    }
+
+    /** LocalDateTime.toString()과 같은 ISO-8601 형식으로 쓴다. 초와 나노초가 0이면 생략한다. */
+    public InvoiceWriter put(LocalDateTime dateTime) {
+        if (dateTime.getYear() > 9999) {
+            putByte((byte)'+');
+        }
+        put(dateTime.getYear(), 4).put('-').put(dateTime.getMonthValue(), 2).put('-').put(dateTime.getDayOfMonth(), 2)
+                .put('T').put(dateTime.getHour(), 2).put(':').put(dateTime.getMinute(), 2);
+
+        int second = dateTime.getSecond();
+        int nano = dateTime.getNano();
+        if (second == 0 && nano == 0) {
+            return this;
+        }
+        put(':').put(second, 2);
+        if (nano == 0) {
+            return this;
+        }
+        putByte((byte)'.');
+        if (nano % 1_000_000 == 0) {
+            return put(nano / 1_000_000, 3);
+        }
+        if (nano % 1_000 == 0) {
+            return put(nano / 1_000, 6);
+        }
+        return put(nano, 9);
+    }
+
+    /** 미리 인코딩해 둔 바이트를 그대로 쓴다. */
+    public InvoiceWriter put(byte[] bytes) {
+        for (byte b : bytes) {
+            putByte(b);
+        }
+        return this;
+    }
+
+    public InvoiceWriter put(Money money) {
+        money.writeTo(this);
+        return this;
+    }
+
+    public InvoiceWriter newLine() {
+        return putByte((byte)'\n');
+    }
+
+    /** 버퍼에 남은 내용을 채널로 내보낸다. 채널은 닫지 않는다. */
+    public void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private InvoiceWriter putByte(byte b) {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+        return this;
+    }
+
+    private InvoiceWriter putEncoded(CharSequence text) {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            flush();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+        return this;
+    }
+}
+
+/**
+ * 요금제 정의 문법을 한 번 파싱해 공유 가능한 불변 정책 객체로 만든다.
+ * 구조가 같은 정책(하위 정책 포함)은 같은 인스턴스를 돌려주므로 가입자가 많아도 정책 사슬이 중복되지 않는다.
+ *
+ * 문법: policy := name '(' arg (',' arg)* ')'
+ *       arg    := policy | number | number ('s' | 'm' | 'h')
+ * 예: taxable(2.0, fixed(5, 10s))
+ */
+class PolicyCatalog {
+    private final ConcurrentHashMap<String, RatePolicy> byDefinition = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RatePolicy> byStructure = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<RatePolicy, String> ids = new ConcurrentHashMap<>(); // 정책은 equals()를 두지 않으므로 인스턴스로 찾는다.
+
+    /** 정의를 검증하고 정책을 돌려준다. 잘못된 정의는 위치를 담은 IllegalArgumentException을 던진다. */
+    public RatePolicy compile(String definition) {
+        RatePolicy cached = byDefinition.get(definition);
+        if (cached != null) {
+            return cached;
+        }
+
+        RatePolicy compiled = new Parser(definition).parse().policy;
+        RatePolicy previous = byDefinition.putIfAbsent(definition, compiled);
+        return previous != null ? previous : compiled;
+    }
+
+    /** 이 카탈로그가 만든 정책의 요금제 식별자(정규화한 정의). 구조가 같으면 식별자도 같다. 다른 곳에서 만든 정책이면 null */
+    public String idOf(RatePolicy policy) {
+        return ids.get(policy);
+    }
+
+    /** 서로 다른 구조의 정책(하위 정책 포함) 수 */
+    public int size() {
+        return byStructure.size();
+    }
+
+    private Node intern(String key, Supplier<RatePolicy> factory) {
+        return new Node(key, byStructure.computeIfAbsent(key, ignored -> {
+            RatePolicy policy = factory.get();
+            ids.put(policy, key);
+            return policy;
+        }));
+    }
+
+    private static class Node {
+        private final String key;
+        private final RatePolicy policy;
+
+        private Node(String key, RatePolicy policy) {
+            this.key = key;
+            this.policy = policy;
+        }
+    }
+
+    private static class Literal {
+        private final BigDecimal value;
+        private final char unit; // 단위가 없으면 0
+
+        private Literal(BigDecimal value, char unit) {
+            this.value = value;
+            this.unit = unit;
+        }
+    }
+
+    private class Parser {
+        private final String text;
+        private int position;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Node parse() {
+            Node result = parsePolicy();
+            skipSpaces();
+            if (position != text.length()) {
+                throw error("unexpected input");
+            }
+            return result;
+        }
+
+        private Node parsePolicy() {
+            skipSpaces();
+            int start = position;
+            while (position < text.length() && Character.isLetter(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("policy name expected");
+            }
+            String name = text.substring(start, position);
+
+            expect('(');
+            List<Object> args = new ArrayList<>();
+            do {
+                args.add(parseArgument());
+                skipSpaces();
+            } while (accept(','));
+            expect(')');
+
+            return build(name, args, start);
+        }
+
+        private Object parseArgument() {
+            skipSpaces();
+            if (position < text.length() && Character.isLetter(text.charAt(position))) {
+                return parsePolicy();
+            }
+
+            int start = position;
+            while (position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+                position++;
+            }
+            if (start == position) {
+                throw error("number or policy expected");
+            }
+
+            BigDecimal value;
+            try {
+                value = new BigDecimal(text.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("malformed number");
+            }
+
+            char unit = 0;
+            if (position < text.length() && "smh".indexOf(text.charAt(position)) >= 0) {
+                unit = text.charAt(position++);
+            }
+            return new Literal(value, unit);
+        }
+
+        private Node build(String name, List<Object> args, int at) {
+            switch (name) {
+                case "fixed": {
+                    arity(name, args, 2, at);
+                    BigDecimal amount = amount(args.get(0), at);
+                    long seconds = seconds(args.get(1), at);
+                    return intern("fixed(" + canonical(amount) + "," + seconds + "s)",
+                            () -> new FixedFeePolicy(new Money(amount), Duration.ofSeconds(seconds)));
+                }
+                case "taxable": {
+                    arity(name, args, 2, at);
+                    BigDecimal ratio = amount(args.get(0), at);
+                    Node next = policy(args.get(1), at);
+                    return intern("taxable(" + canonical(ratio) + "," + next.key + ")",
+                            () -> new TaxablePolicy(ratio.doubleValue(), next.policy));
+                }
+                default:
+                    position = at;
+                    throw error("unknown policy '" + name + "'");
+            }
+        }
+
+        private void arity(String name, List<Object> args, int expected, int at) {
+            if (args.size() != expected) {
+                position = at;
+                throw error(name + " takes " + expected + " arguments");
+            }
+        }
+
+        private BigDecimal amount(Object arg, int at) {
+            if (!(arg instanceof Literal) || ((Literal)arg).unit != 0 || ((Literal)arg).value.signum() < 0) {
+                position = at;
+                throw error("non-negative number expected");
+            }
+            return ((Literal)arg).value;
+        }
+
+        private long seconds(Object arg, int at) {
+            if (!(arg instanceof Literal)) {
+                position = at;
+                throw error("duration expected");
+            }
+            Literal literal = (Literal)arg;
+            long scale = literal.unit == 'h' ? 3600 : literal.unit == 'm' ? 60 : 1;
+            try {
+                long seconds = literal.value.multiply(BigDecimal.valueOf(scale)).longValueExact();
+                if (seconds > 0) {
+                    return seconds;
+                }
+            } catch (ArithmeticException e) {
+                // 아래에서 위치와 함께 알린다.
+            }
+            position = at;
+            throw error("positive whole number of seconds expected");
+        }
+
+        private Node policy(Object arg, int at) {
+            if (!(arg instanceof Node)) {
+                position = at;
+                throw error("policy expected");
+            }
+            return (Node)arg;
+        }
+
+        private String canonical(BigDecimal value) {
+            return value.stripTrailingZeros().toPlainString();
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean accept(char c) {
+            skipSpaces();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("'" + c + "' expected");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position + ": " + text);
+        }
+    }
+}
+/**
+ * 스트리밍 분위수 스케치(KLL). 레벨마다 k개가 차면 정렬한 뒤 하나 건너 하나만 윗 레벨로 올린다.
+ * 레벨 l의 값은 2^l 건을 대표한다. 다른 스케치와 합칠 수 있고, 메모리는 k * 레벨 수로 제한된다.
+ */
+class QuantileSketch {
+    private final int k;
+    private long[][] levels = new long[1][];
+    private int[] sizes = new int[1];
+    private long count;
+    private long seed = 0x9E3779B97F4A7C15L;
+
+    private long[] sortedValues; // 조회용 캐시. 값이 추가되면 버린다.
+    private long[] cumulativeWeights;
+
+    public QuantileSketch(int k) {
+        if (k < 8 || k % 2 != 0) {
+            throw new IllegalArgumentException("k must be an even number >= 8: " + k);
+        }
+        this.k = k;
+        levels[0] = new long[k];
+    }
+
+    public void add(long value) {
+        insert(0, value);
+        count++;
+        sortedValues = null;
+    }
+
+    public void merge(QuantileSketch other) {
+        for (int level = 0; level < other.levels.length; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                insert(level, other.levels[level][i]);
+            }
+        }
+        count += other.count;
+        sortedValues = null;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** q(0 ~ 1) 분위수의 근삿값. 비어 있으면 0 */
+    public long quantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        if (sortedValues == null) {
+            buildView();
+        }
+
+        long target = (long)Math.ceil(q * cumulativeWeights[cumulativeWeights.length - 1]);
+        int found = Arrays.binarySearch(cumulativeWeights, Math.max(1, target));
+        return sortedValues[found >= 0 ? found : -found - 1];
+    }
+
+    private void insert(int level, long value) {
+        if (level == levels.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            sizes = Arrays.copyOf(sizes, level + 1);
+            levels[level] = new long[k];
+        }
+        if (sizes[level] == k) {
+            compact(level);
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    private void compact(int level) {
+        long[] items = levels[level];
+        Arrays.sort(items, 0, k);
+        sizes[level] = 0;
+
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        for (int i = (int)(seed & 1); i < k; i += 2) {
+            insert(level + 1, items[i]);
+        }
+    }
+
+    /** 레벨별로 정렬한 뒤 병합해 값 순서와 누적 가중치를 만든다. */
+    private void buildView() {
+        int total = 0;
+        long[][] sorted = new long[levels.length][];
+        for (int level = 0; level < levels.length; level++) {
+            sorted[level] = Arrays.copyOf(levels[level], sizes[level]);
+            Arrays.sort(sorted[level]);
+            total += sizes[level];
+        }
+
+        long[] values = new long[total];
+        long[] weights = new long[total];
+        int[] cursors = new int[levels.length];
+        long sum = 0;
+        for (int i = 0; i < total; i++) {
+            int smallest = -1;
+            for (int level = 0; level < sorted.length; level++) {
+                if (cursors[level] < sorted[level].length
+                        && (smallest < 0 || sorted[level][cursors[level]] < sorted[smallest][cursors[smallest]])) {
+                    smallest = level;
+                }
+            }
+            values[i] = sorted[smallest][cursors[smallest]++];
+            sum += 1L << smallest;
+            weights[i] = sum;
+        }
+        this.sortedValues = values;
+        this.cumulativeWeights = weights;
+    }
+}
+/** 서로 다른 값의 개수를 세는 HyperLogLog. 레지스터 2^12개(4KB), 표준 오차 약 1.6% */
+class HyperLogLog {
+    private static final int P = 12;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    public void add(long value) {
+        long hash = mix(value);
+        int index = (int)(hash >>> (64 - P));
+        int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte)rank;
+        }
+    }
+
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double estimate = alpha * M * M / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            estimate = M * Math.log((double)M / zeros); // 작은 범위는 선형 계수로 보정한다.
+        }
+        return Math.round(estimate);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
+/**
+ * 통화를 받아들이면서 요금제(planOf()의 키)별, 날짜별로 통화 시간 분위수 스케치와 가입자 HyperLogLog를 유지한다.
+ * 전체 통화를 다시 훑지 않고 "요금제별 p99 통화 시간", "일별 발신 가입자 수" 같은 질의에 답한다.
+ */
+class CallAnalytics {
+    private static final int QUANTILE_K = 256;
+
+    private final PolicyCatalog catalog;
+    private final ConcurrentHashMap<Key, DailySketch> sketches = new ConcurrentHashMap<>();
+
+    public CallAnalytics(PolicyCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * 정책의 요금제 키. catalog에서 컴파일한 정책이면 catalog의 식별자이고, 직접 조립한 정책이면 정책 클래스 이름이다.
+     * 카탈로그 식별자는 늘 괄호가 있는 정의이므로 클래스 이름과 겹치지 않는다.
+     */
+    public String planOf(RatePolicy policy) {
+        String plan = catalog.idOf(policy);
+        return plan != null ? plan : policy.getClass().getName();
+    }
+
+    public void record(String plan, long msisdn, Call call) {
+        Key key = new Key(plan, call.getFrom().toLocalDate().toEpochDay());
+        sketches.computeIfAbsent(key, ignored -> new DailySketch()).add(msisdn, call.getDuration().getSeconds());
+    }
+
+    /** from ~ to 기간, plan 요금제 통화 시간(초)의 q 분위수 */
+    public long durationQuantile(String plan, LocalDate from, LocalDate to, double q) {
+        if (from.equals(to)) {
+            DailySketch sketch = sketches.get(new Key(plan, from.toEpochDay()));
+            return sketch == null ? 0 : sketch.quantile(q);
+        }
+
+        QuantileSketch merged = new QuantileSketch(QUANTILE_K);
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++) {
+            DailySketch sketch = sketches.get(new Key(plan, day));
+            if (sketch != null) {
+                sketch.mergeInto(merged, null);
+            }
+        }
+        return merged.quantile(q);
+    }
+
+    /** from ~ to 기간, plan 요금제로 통화한 서로 다른 가입자 수의 근삿값 */
+    public long distinctSubscribers(String plan, LocalDate from, LocalDate to) {
+        HyperLogLog merged = new HyperLogLog();
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++) {
+            DailySketch sketch = sketches.get(new Key(plan, day));
+            if (sketch != null) {
+                sketch.mergeInto(null, merged);
+            }
+        }
+        return merged.estimate();
+    }
+
+    private static class DailySketch {
+        private final QuantileSketch durations = new QuantileSketch(QUANTILE_K);
+        private final HyperLogLog subscribers = new HyperLogLog();
+
+        synchronized void add(long msisdn, long seconds) {
+            durations.add(seconds);
+            subscribers.add(msisdn);
+        }
+
+        synchronized long quantile(double q) {
+            return durations.quantile(q);
+        }
+
+        synchronized void mergeInto(QuantileSketch quantiles, HyperLogLog distinct) {
+            if (quantiles != null) {
+                quantiles.merge(durations);
+            }
+            if (distinct != null) {
+                distinct.merge(subscribers);
+            }
+        }
+    }
+
+    private static class Key {
+        private final String plan;
+        private final long epochDay;
+
+        private Key(String plan, long epochDay) {
+            this.plan = plan;
+            this.epochDay = epochDay;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)object;
+            return plan.equals(other.plan) && epochDay == other.epochDay;
+        }
+
+        @Override
+        public int hashCode() {
+            return plan.hashCode() * 31 + Long.hashCode(epochDay);
+        }
+    }
+}
+
+/**
+ * 짧게 살다 가는 과금 워커의 시작 시간을 줄이기 위한 실행 모드.
+ *   train : 대표 작업(요금제 컴파일, 통화 적재, 요금/항목별 청구/청구서 작성)을 돌려 클래스 로딩과 프로파일을 남긴다.
+ *   bill  : 전화기 하나의 첫 청구서를 계산하고 JVM 시작부터 걸린 시간을 출력한다.
+ * train 실행에 -XX:ArchiveClassesAtExit(AppCDS)나 -XX:AOTCacheOutput(JDK 25 이상)을 붙이면 다음 실행이 그 아카이브를 쓴다.
+ */
+class BillingWorker {
+    static final String FIRST_BILL = "first-bill-ms=";
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "bill";
+        switch (mode) {
+            case "train":
+                train(args.length > 1 ? Integer.parseInt(args[1]) : 2_000);
+                break;
+            case "bill":
+                Money fee = firstBill();
+                System.out.println(FIRST_BILL + ManagementFactory.getRuntimeMXBean().getUptime() + " fee=" + fee);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+    }
+
+    /** 실제 청구와 같은 경로(요금제 컴파일, 통화 적재, 항목별 청구, 청구서 작성)로 전화기 하나의 청구서를 만든다. */
+    static Money firstBill() {
+        Phone phone = new Phone(new PolicyCatalog().compile("taxable(0.1, fixed(5, 10s))"));
+        phone.call(new Call(LocalDateTime.of(2018, 1, 1, 11, 0), LocalDateTime.of(2018, 1, 2, 11, 10)));
+        phone.call(new Call(LocalDateTime.of(2018, 1, 2, 12, 0), LocalDateTime.of(2018, 1, 2, 12, 10)));
+
+        ItemizedBill bill = new ItemizedBill();
+        InvoiceWriter writer = new InvoiceWriter(8 * 1024);
+        phone.writeInvoice(writer.open(discard()), bill);
+        writer.flush();
+        return phone.calculateFee();
+    }
+
+    static void train(int phones) {
+        PolicyCatalog catalog = new PolicyCatalog();
+        String[] plans = { "fixed(5, 10s)", "taxable(0.1, fixed(5, 10s))", "taxable(2.0, fixed(18, 1m))" };
+        ItemizedBill bill = new ItemizedBill();
+        InvoiceWriter writer = new InvoiceWriter(8 * 1024);
+        WritableByteChannel discard = discard();
+
+        Money total = Money.ZERO;
+        LocalDateTime start = LocalDateTime.of(2018, 1, 1, 0, 0);
+        for (int i = 0; i < phones; i++) {
+            Phone phone = new Phone(catalog.compile(plans[i % plans.length]));
+            for (int call = 0; call < 50; call++) {
+                LocalDateTime from = start.plusMinutes(i * 7L + call * 97L);
+                phone.call(new Call(from, from.plusSeconds(30 + call * 13L)));
+            }
+            total = total.plus(phone.calculateFee());
+            phone.writeInvoice(writer.open(discard), bill);
+            writer.flush();
+        }
+        System.out.println("trained phones=" + phones + " total=" + total);
+    }
+
+    /** 쓴 내용을 버리는 채널 */
+    private static WritableByteChannel discard() {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int written = source.remaining();
+                source.position(source.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
+/**
+ * 아카이브가 없을 때와 있을 때 BillingWorker의 첫 청구서까지 걸린 시간을 비교한다.
+ * 아카이브를 쓰는 실행은 -Xshare:on(AOT 캐시는 -XX:AOTMode=on)으로 띄워 아카이브를 못 쓰면 JVM이 시작하지 않게 하고,
+ * 재기 전에 한 번 클래스 로딩 로그로 청구 클래스들이 실제로 아카이브에서 올라오는지 확인한다.
+ * 사용법: java -cp <classes> chap14.StartupBenchmark [반복 횟수] [아카이브 경로]
+ */
+class StartupBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Path archive = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("billing-cds").resolve("billing.jsa");
+        boolean aotCache = Runtime.version().feature() >= 25;
+        Files.createDirectories(archive.toAbsolutePath().getParent());
+
+        String record = aotCache ? "-XX:AOTCacheOutput=" + archive : "-XX:ArchiveClassesAtExit=" + archive;
+        List<String> use = aotCache
+                ? Arrays.asList("-XX:AOTCache=" + archive, "-XX:AOTMode=on")
+                : Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xshare:on");
+        String classpath = archivableClasspath(archive.resolveSibling("billing-classes.jar"));
+
+        run(classpath, Collections.singletonList(record), "train", null);
+        verifyArchived(classpath, use);
+        long[] cold = new long[runs];
+        long[] warm = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            cold[i] = run(classpath, Collections.emptyList(), "bill", null);
+            warm[i] = run(classpath, use, "bill", null);
+        }
+
+        Arrays.sort(cold);
+        Arrays.sort(warm);
+        System.out.println((aotCache ? "AOT cache" : "AppCDS") + " archive: " + archive);
+        System.out.println("time to first bill (median ms) without archive: " + cold[runs / 2] + ", with archive: " + warm[runs / 2]);
+    }
+
+    /** CDS는 클래스 경로에 비어 있지 않은 디렉터리를 허용하지 않으므로, 디렉터리는 jar 하나로 묶는다. */
+    private static String archivableClasspath(Path jar) throws IOException {
+        List<String> entries = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (Files.isDirectory(Path.of(entry))) {
+                directories.add(Path.of(entry));
+            } else {
+                entries.add(entry);
+            }
+        }
+        if (directories.isEmpty()) {
+            return String.join(File.pathSeparator, entries);
+        }
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (Path directory : directories) {
+                List<Path> files;
+                try (Stream<Path> walk = Files.walk(directory)) {
+                    files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+                }
+                for (Path file : files) {
+                    out.putNextEntry(new JarEntry(directory.relativize(file).toString().replace(File.separatorChar, '/')));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                }
+            }
+        }
+        entries.add(0, jar.toString());
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /** 청구 작업이 올린 이 패키지의 클래스가 하나도 빠짐없이 아카이브에서 왔는지 확인한다. 아니면 IllegalStateException */
+    private static void verifyArchived(String classpath, List<String> use) throws IOException, InterruptedException {
+        List<String> options = new ArrayList<>(use);
+        options.add("-Xlog:class+load=info");
+        List<String> notArchived = new ArrayList<>();
+        int[] archived = new int[1];
+        String prefix = BillingWorker.class.getPackageName() + ".";
+        run(classpath, options, "bill", line -> {
+            int at = line.indexOf(prefix);
+            int source = line.indexOf(" source: ");
+            if (at < 0 || source < at || line.contains("$$Lambda")) {
+                return; // 람다 같은 숨은 클래스는 아카이브 여부가 JDK마다 다르다.
+            }
+            if (line.contains("shared objects file")) {
+                archived[0]++;
+            } else {
+                notArchived.add(line.substring(at, source));
+            }
+        });
+        if (archived[0] == 0 || !notArchived.isEmpty()) {
+            throw new IllegalStateException("archive not used for billing classes: archived=" + archived[0] + " loaded=" + notArchived);
+        }
+    }
+
+    private static long run(String classpath, List<String> options, String mode, Consumer<String> log)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.addAll(Arrays.asList("-cp", classpath, BillingWorker.class.getName(), mode));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long firstBill = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (log != null) {
+                    log.accept(line);
+                }
+                if (line.startsWith(BillingWorker.FIRST_BILL)) {
+                    firstBill = Long.parseLong(line.substring(BillingWorker.FIRST_BILL.length(), line.indexOf(' ')));
+                }
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("worker failed: " + command);
+        }
+        return firstBill;
+    }
+}
+/**
+ * 가입자를 과금 워커에 나누는 일관된 해싱 링. 노드마다 VIRTUAL_NODES개의 점을 링에 놓고,
+ * 가입자는 자기 해시값 다음에 오는 점의 노드에 속한다. 노드가 들어오거나 나가면 그 노드 몫의 구간만 옮겨진다.
+ * 점의 위치는 노드 이름만으로 정해지므로 코디네이터와 워커가 같은 노드 목록으로 같은 링을 만든다.
+ */
+class HashRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points; // 오름차순
+    private final String[] owners;
+
+    public static HashRing of(Collection<String> nodes) {
+        return new HashRing(new ArrayList<>(new LinkedHashSet<>(nodes)));
+    }
+
+    private HashRing(List<String> nodes) {
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : nodes) {
+            long seed = mix(node.hashCode()); // String.hashCode()는 JVM마다 같다.
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.merge(mix(seed + i), node, (left, right) -> left.compareTo(right) <= 0 ? left : right);
+            }
+        }
+
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+    }
+
+    public HashRing with(String node) {
+        List<String> next = new ArrayList<>(nodes);
+        next.add(node);
+        return of(next);
+    }
+
+    public HashRing without(String node) {
+        List<String> next = new ArrayList<>(nodes);
+        next.remove(node);
+        return of(next);
+    }
+
+    public String nodeFor(long msisdn) {
+        if (points.length == 0) {
+            throw new IllegalStateException("no billing nodes");
+        }
+
+        int found = Arrays.binarySearch(points, mix(msisdn));
+        int index = found >= 0 ? found : -found - 1;
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /** SplitMix64의 마무리 단계. 연속한 번호도 링 전체에 고르게 흩어진다. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+/**
+ * 파티션 하나를 맡는 과금 워커 프로세스. 루프백의 빈 포트에서 코디네이터 하나의 연결을 기다리고,
+ * 한 줄짜리 명령을 차례로 처리한다. 응답은 TOTAL과 EXPORT에만 보낸다.
+ * 처리할 수 없는 줄(형식이 틀렸거나 모르는 명령, 모르는 가입자)에는 "ERROR 사유" 한 줄로 답하고 다음 줄을 계속 처리한다.
+ *   PLAN msisdn 요금제        : 가입자를 등록한다(요금제는 PolicyCatalog 문법)
+ *   CDR msisdn,시작,종료       : 통화를 기록한다
+ *   TOTAL                     : TOTAL 가입자수 통화수 청구합계
+ *   EXPORT 내이름 노드...       : 새 링에서 다른 노드 몫이 된 가입자를 PLAN/CDR 줄로 내보내고 지운 뒤 END
+ *   QUIT                      : 종료
+ */
+class PartitionWorker {
+    static final String READY = "partition-worker-port=";
+    static final String ERROR = "ERROR ";
+
+    private final PolicyCatalog catalog = new PolicyCatalog();
+    private final SubscriberRegistry<Subscriber> subscribers = new SubscriberRegistry<>();
+
+    public static void main(String[] args) throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println(READY + server.getLocalPort());
+            System.out.flush();
+            try (Socket socket = server.accept();
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                new PartitionWorker().serve(in, out);
+            }
+        }
+    }
+
+    void serve(BufferedReader in, BufferedWriter out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            int space = line.indexOf(' ');
+            String command = space < 0 ? line : line.substring(0, space);
+            String argument = space < 0 ? "" : line.substring(space + 1);
+            if ("QUIT".equals(command)) {
+                return;
+            }
+            try {
+                handle(command, argument, out);
+            } catch (RuntimeException e) {
+                out.write(ERROR + (e.getMessage() == null ? e.toString() : e.getMessage()).replace('\n', ' ') + " <- " + line);
+                out.newLine();
+                out.flush();
+            }
+        }
+    }
+
+    private void handle(String command, String argument, BufferedWriter out) throws IOException {
+        switch (command) {
+            case "PLAN":
+                int split = argument.indexOf(' ');
+                if (split < 0) {
+                    throw new IllegalArgumentException("PLAN needs msisdn and plan");
+                }
+                long msisdn = Long.parseLong(argument.substring(0, split));
+                String plan = argument.substring(split + 1);
+                subscribers.register(msisdn, new Subscriber(plan, new Phone(catalog.compile(plan))));
+                break;
+            case "CDR":
+                CallDetailRecord record = CallDetailRecord.parse(argument);
+                Subscriber subscriber = subscribers.get(record.getMsisdn());
+                if (subscriber == null) {
+                    throw new IllegalStateException("unknown subscriber: " + record.getMsisdn());
+                }
+                subscriber.phone.call(record.getCall());
+                break;
+            case "TOTAL":
+                out.write(total());
+                out.newLine();
+                out.flush();
+                break;
+            case "EXPORT":
+                List<String> nodes = Arrays.asList(argument.split(" "));
+                export(nodes.get(0), HashRing.of(nodes.subList(1, nodes.size())), out);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command: " + command);
+        }
+    }
+
+    private String total() {
+        Money[] fee = { Money.ZERO };
+        long[] calls = { 0 };
+        subscribers.forEach((msisdn, subscriber) -> {
+            fee[0] = fee[0].plus(subscriber.phone.calculateFee());
+            calls[0] += subscriber.phone.getCalls().size();
+        });
+        return "TOTAL " + subscribers.size() + " " + calls[0] + " " + fee[0].toPlainString();
+    }
+
+    private void export(String self, HashRing ring, BufferedWriter out) throws IOException {
+        List<Long> leaving = new ArrayList<>();
+        subscribers.forEach((msisdn, subscriber) -> {
+            if (!ring.getNodes().contains(self) || !ring.nodeFor(msisdn).equals(self)) {
+                leaving.add(msisdn);
+            }
+        });
+
+        for (long msisdn : leaving) {
+            Subscriber subscriber = subscribers.unregister(msisdn);
+            out.write("PLAN " + msisdn + " " + subscriber.plan);
+            out.newLine();
+            for (Call call : subscriber.phone.getCalls()) {
+                out.write("CDR " + msisdn + "," + call.getFrom() + "," + call.getTo());
+                out.newLine();
+            }
+        }
+        out.write("END");
+        out.newLine();
+        out.flush();
+    }
+
+    private static class Subscriber {
+        private final String plan;
+        private final Phone phone;
+
+        private Subscriber(String plan, Phone phone) {
+            this.plan = plan;
+            this.phone = phone;
+        }
+    }
+}
+/** 파티션 하나의 청구 합계 */
+class PartitionTotal {
+    private final String node;
+    private final int subscribers;
+    private final long calls;
+    private final Money fee;
+
+    PartitionTotal(String node, int subscribers, long calls, Money fee) {
+        this.node = node;
+        this.subscribers = subscribers;
+        this.calls = calls;
+        this.fee = fee;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public int getSubscribers() {
+        return subscribers;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public Money getFee() {
+        return fee;
+    }
+
+    @Override
+    public String toString() {
+        return node + " subscribers=" + subscribers + " calls=" + calls + " fee=" + fee;
+    }
+}
+/**
+ * 가입자를 HashRing으로 나눠 로컬 PartitionWorker 프로세스들에 맡기는 코디네이터. 가입자 등록과 CDR을 주인 워커로 보내고,
+ * 파티션별 합계를 모은다. 워커가 들어오거나 나가면 기존 워커들에게 새 링을 알려 옮겨야 할 가입자를 받아 새 주인에게 넘긴다.
+ * 가입자 요금은 한 워커 안에서 끝까지 계산되므로 합계는 가입자가 어느 워커에 있든 같다.
+ * 정상적인 탈퇴만 다룬다. 워커가 죽으면 그 몫은 CallJournal로 복구해야 한다.
+ * 워커가 거절한 줄(ERROR 응답)은 모아 두었다가 다음 totals()에서 IllegalStateException으로 알린다.
+ * 사용법: java -cp <classes> chap14.BillingCoordinator [워커 수] [가입자 수] [가입자당 통화 수]
+ */
+class BillingCoordinator implements AutoCloseable {
+    private final Map<String, WorkerLink> workers = new LinkedHashMap<>();
+    private HashRing ring = HashRing.of(List.of());
+
+    public static void main(String[] args) throws IOException {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int callsPerSubscriber = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        String[] plans = { "fixed(5, 10s)", "taxable(0.1, fixed(5, 10s))", "taxable(2.0, fixed(18, 1m))" };
+        PolicyCatalog catalog = new PolicyCatalog();
+
+        Money expected = Money.ZERO; // 한 JVM에서 계산한 합계
+        try (BillingCoordinator coordinator = new BillingCoordinator()) {
+            for (int i = 0; i < nodes; i++) {
+                coordinator.join("node-" + i);
+            }
+
+            LocalDateTime start = LocalDateTime.of(2018, 1, 1, 0, 0);
+            for (long msisdn = 1; msisdn <= subscribers; msisdn++) {
+                String plan = plans[(int)(msisdn % plans.length)];
+                Phone local = new Phone(catalog.compile(plan));
+                coordinator.subscribe(msisdn, plan);
+                for (int call = 0; call < callsPerSubscriber; call++) {
+                    LocalDateTime from = start.plusMinutes(msisdn * 7 + call * 97L);
+                    Call made = new Call(from, from.plusSeconds(30 + call * 13L));
+                    local.call(made);
+                    coordinator.submit(msisdn + "," + made.getFrom() + "," + made.getTo());
+                }
+                expected = expected.plus(local.calculateFee());
+            }
+
+            report("initial", coordinator.totals());
+            coordinator.join("node-" + nodes);
+            report("after join", coordinator.totals());
+            coordinator.leave("node-0");
+            report("after leave", coordinator.totals());
+            System.out.println("single JVM total=" + expected);
+        }
+    }
+
+    private static void report(String title, List<PartitionTotal> totals) {
+        Money sum = Money.ZERO;
+        System.out.println("== " + title);
+        for (PartitionTotal total : totals) {
+            System.out.println(total);
+            sum = sum.plus(total.getFee());
+        }
+        System.out.println("total=" + sum);
+    }
+
+    /** 새 워커 프로세스를 띄워 링에 넣고, 새 워커 몫이 된 가입자를 기존 워커들에게서 옮겨 온다. */
+    public synchronized void join(String node) throws IOException {
+        if (workers.containsKey(node) || node.contains(" ")) {
+            throw new IllegalArgumentException("invalid node: " + node);
+        }
+
+        workers.put(node, WorkerLink.spawn(node));
+        rebalance(ring.with(node));
+    }
+
+    /** 워커의 가입자를 모두 남은 워커들에게 옮긴 뒤 워커를 내린다. */
+    public synchronized void leave(String node) throws IOException {
+        if (!workers.containsKey(node)) {
+            throw new IllegalArgumentException("unknown node: " + node);
+        }
+
+        rebalance(ring.without(node));
+        workers.remove(node).close();
+    }
+
+    public synchronized void subscribe(long msisdn, String plan) throws IOException {
+        owner(msisdn).send("PLAN " + msisdn + " " + plan);
+    }
+
+    /** CDR 한 줄(msisdn,시작,종료)을 주인 워커로 보낸다. */
+    public synchronized void submit(String cdr) throws IOException {
+        owner(Long.parseLong(cdr.substring(0, cdr.indexOf(',')).trim())).send("CDR " + cdr);
+    }
+
+    /** 워커마다 청구 합계를 물어 모은다. */
+    public synchronized List<PartitionTotal> totals() throws IOException {
+        List<PartitionTotal> totals = new ArrayList<>();
+        for (WorkerLink worker : workers.values()) {
+            String[] fields = worker.request("TOTAL").split(" ");
+            totals.add(new PartitionTotal(worker.node, Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Money.parse(fields[3])));
+        }
+
+        List<String> rejected = new ArrayList<>();
+        for (WorkerLink worker : workers.values()) {
+            for (String error : worker.drainErrors()) {
+                rejected.add(worker.node + ": " + error);
+            }
+        }
+        if (!rejected.isEmpty()) {
+            throw new IllegalStateException("workers rejected " + rejected.size() + " lines: " + rejected);
+        }
+        return totals;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (WorkerLink worker : workers.values()) {
+            worker.close();
+        }
+        workers.clear();
+    }
+
+    private void rebalance(HashRing next) throws IOException {
+        String nodes = String.join(" ", next.getNodes());
+        for (WorkerLink worker : new ArrayList<>(workers.values())) {
+            worker.send("EXPORT " + worker.node + (nodes.isEmpty() ? "" : " " + nodes));
+            worker.flush();
+            String line;
+            while (!(line = worker.receive()).equals("END")) {
+                int from = line.indexOf(' ') + 1;
+                int to = line.startsWith("PLAN") ? line.indexOf(' ', from) : line.indexOf(',', from);
+                workers.get(next.nodeFor(Long.parseLong(line.substring(from, to)))).send(line);
+            }
+        }
+        ring = next;
+    }
+
+    private WorkerLink owner(long msisdn) {
+        return workers.get(ring.nodeFor(msisdn));
+    }
+
+    /** 워커 프로세스 하나와 그 소켓 */
+    private static class WorkerLink implements AutoCloseable {
+        private final String node;
+        private final Process process;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+        private final List<String> errors = new ArrayList<>(); // 워커가 보낸 ERROR 사유
+
+        static WorkerLink spawn(String node) throws IOException {
+            List<String> command = Arrays.asList(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), PartitionWorker.class.getName());
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            BufferedReader console = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = console.readLine()) != null && !line.startsWith(PartitionWorker.READY)) {
+                // 준비 줄 앞의 JVM 경고는 건너뛴다.
+            }
+            if (line == null) {
+                throw new IOException("worker " + node + " exited before listening");
+            }
+            drain(node, console);
+
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(line.substring(PartitionWorker.READY.length())));
+            return new WorkerLink(node, process, socket);
+        }
+
+        /** 준비 줄 뒤의 워커 콘솔 출력도 계속 읽어 넘긴다. 읽지 않으면 파이프가 차서 워커가 출력에서 멈춘다. */
+        private static void drain(String node, BufferedReader console) {
+            Thread thread = new Thread(() -> {
+                try (console) {
+                    String line;
+                    while ((line = console.readLine()) != null) {
+                        System.err.println("[" + node + "] " + line);
+                    }
+                } catch (IOException e) {
+                    // 워커가 끝나면 파이프가 닫힌다.
+                }
+            }, "partition-worker-console-" + node);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private WorkerLink(String node, Process process, Socket socket) throws IOException {
+            this.node = node;
+            this.process = process;
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            out.write(line);
+            out.newLine();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        /** 응답 한 줄을 읽는다. 앞서 보낸 줄에 대한 ERROR 응답은 errors에 모으고 건너뛴다. */
+        String receive() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null && line.startsWith(PartitionWorker.ERROR)) {
+                errors.add(line.substring(PartitionWorker.ERROR.length()));
+            }
+            if (line == null) {
+                throw new IOException("worker " + node + " closed the connection");
+            }
+            return line;
+        }
+
+        /** 지금까지 받은 ERROR 사유를 넘기고 비운다. */
+        List<String> drainErrors() {
+            List<String> drained = new ArrayList<>(errors);
+            errors.clear();
+            return drained;
+        }
+
+        String request(String line) throws IOException {
+            send(line);
+            flush();
+            return receive();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                send("QUIT");
+                flush();
+            } finally {
+                socket.close();
+                try {
+                    if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 }
 